@@ -0,0 +1,70 @@
+package mpostviewer.benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Decoding a preview PNG through PreviewImage, for previews of typical and large figures.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DecodeBenchmark {
+
+	@Param({ "300", "1200", "3000" })
+	public int size;
+
+	private byte[] png;
+	private MethodHandle newPreviewImage;
+	private MethodHandle getImage;
+
+	@Setup
+	public void encode() throws Exception {
+		// line art on a transparent background, like mpost output
+		BufferedImage image = new BufferedImage(size, size * 3 / 4, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(Color.BLACK);
+		g.setStroke(new BasicStroke(Math.max(1, size / 300f)));
+		for (int i = 0; i < 40; i++) {
+			g.drawLine(i * size / 40, 0, size - i * size / 40, image.getHeight());
+			g.drawOval(size / 4, image.getHeight() / 4, i * size / 80 + 1, i * image.getHeight() / 80 + 1);
+		}
+		g.dispose();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		png = out.toByteArray();
+
+		Class<?> previewImage = Sources.type("PreviewImage");
+		newPreviewImage = MethodHandles.publicLookup().findConstructor(previewImage, MethodType.methodType(void.class, byte[].class));
+		getImage = MethodHandles.publicLookup().findVirtual(previewImage, "getImage", MethodType.methodType(BufferedImage.class));
+	}
+
+	@Benchmark
+	public BufferedImage decode() throws Throwable {
+		return (BufferedImage) getImage.invoke(newPreviewImage.invoke(png));
+	}
+}
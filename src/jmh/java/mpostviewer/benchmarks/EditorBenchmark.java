@@ -0,0 +1,97 @@
+package mpostviewer.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Edits going through EditorFilter and the highlighter, on the EDT like real keystrokes. Every
+// benchmark undoes its own edit so the document keeps its size during an iteration.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EditorBenchmark {
+	private static final String BLOCK = Sources.document(40);
+
+	@Param({ "1000", "10000", "100000" })
+	public int lines;
+
+	private DefaultStyledDocument document;
+	private int offset;
+
+	@Setup(Level.Iteration)
+	public void loadDocument() throws Exception {
+		SwingUtilities.invokeAndWait(() -> {
+			try {
+				JTextPane editor = new JTextPane();
+				Object editorFilter = Sources.type("EditorFilter").getConstructor(JTextPane.class, Runnable.class).newInstance(editor, (Runnable) () -> {
+				});
+				Class<?> editorDocument = Sources.type("EditorDocument");
+				document = (DefaultStyledDocument) editorDocument.getMethod("load", String.class).invoke(null, Sources.document(lines));
+				editorFilter.getClass().getMethod("install", editorDocument).invoke(editorFilter, document);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		// in the middle of the document, right before a draw statement
+		offset = document.getDefaultRootElement().getElement(lines / 2 + 6).getStartOffset() + 2;
+	}
+
+	@Benchmark
+	public void typeAndBackspace() throws Exception {
+		onEventDispatchThread(() -> {
+			document.insertString(offset, "x", null);
+			document.remove(offset, 1);
+		});
+	}
+
+	@Benchmark
+	public void enterAndBackspace() throws Exception {
+		onEventDispatchThread(() -> {
+			int before = document.getLength();
+			document.insertString(offset, "\n", null);
+			document.remove(offset, document.getLength() - before);
+		});
+	}
+
+	@Benchmark
+	public void pasteAndDeleteBlock() throws Exception {
+		onEventDispatchThread(() -> {
+			document.insertString(offset, BLOCK, null);
+			document.remove(offset, BLOCK.length());
+		});
+	}
+
+	private interface Edit {
+		void run() throws BadLocationException;
+	}
+
+	private static void onEventDispatchThread(Edit edit) throws InterruptedException, InvocationTargetException {
+		SwingUtilities.invokeAndWait(() -> {
+			try {
+				edit.run();
+			} catch (BadLocationException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+}
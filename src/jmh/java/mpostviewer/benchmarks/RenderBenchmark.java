@@ -0,0 +1,67 @@
+package mpostviewer.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End-to-end latency of MetapostService.renderMetapostToPng, which bypasses the render caches.
+// The jmh task puts the stub mpost and gs from src/jmh/stub first on the PATH, so this measures
+// our own overhead (files, processes, conversion pool) and runs without a TeX installation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+	@Param({ "1", "8" })
+	public int figures;
+
+	private Path cacheDirectory;
+	private Object metapostService;
+	private Object renderSettings;
+	private MethodHandle renderMetapostToPng;
+	private String source;
+
+	@Setup
+	public void createService() throws Throwable {
+		cacheDirectory = Files.createTempDirectory("mpostviewer-benchmark");
+		Class<?> service = Sources.type("MetapostService");
+		Class<?> settings = Sources.type("RenderSettings");
+		metapostService = service.getConstructor(Path.class).newInstance(cacheDirectory);
+		renderSettings = settings.getField("DEFAULT").get(null);
+		renderMetapostToPng = MethodHandles.publicLookup().findVirtual(service, "renderMetapostToPng",
+			MethodType.methodType(Sources.type("RenderResult"), String.class, settings));
+		source = Sources.figures(figures);
+		// waits for the output backend probe
+		render();
+	}
+
+	@TearDown
+	public void deleteCache() {
+		FileUtils.deleteQuietly(cacheDirectory.toFile());
+	}
+
+	@Benchmark
+	public Object render() throws Throwable {
+		return renderMetapostToPng.invoke(metapostService, source, renderSettings);
+	}
+}
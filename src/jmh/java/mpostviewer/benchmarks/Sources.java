@@ -0,0 +1,57 @@
+package mpostviewer.benchmarks;
+
+// The application lives in the default package, which can't be imported from here,
+// so its classes are looked up by name.
+final class Sources {
+
+	private Sources() {
+	}
+
+	static Class<?> type(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// a document of the given number of lines in the style of the bundled template
+	static String document(int lines) {
+		StringBuilder sb = new StringBuilder();
+		int figure = 0;
+		for (int line = 0; line < lines; line++) {
+			switch (line % 10) {
+			case 0:
+				sb.append("beginfig(").append(++figure).append(");\n");
+				break;
+			case 1:
+				sb.append("  % a comment with keywords: draw fill endfig\n");
+				break;
+			case 2:
+				sb.append("  pair a, b; numeric n; path p;\n");
+				break;
+			case 3:
+				sb.append("  a := (0, 0); b := (3.5cm, 1.25cm);\n");
+				break;
+			case 4:
+				sb.append("  label.top(btex $\\alpha_").append(line).append("$ etex, b);\n");
+				break;
+			case 5:
+				sb.append("  message \"figure ").append(figure).append("\";\n");
+				break;
+			case 9:
+				sb.append("endfig;\n");
+				break;
+			default:
+				sb.append("  draw a--b withpen pencircle scaled 0.4pt;\n");
+				break;
+			}
+		}
+		return sb.toString();
+	}
+
+	// a document with the given number of figures, each one complete
+	static String figures(int figures) {
+		return document(figures * 10) + "end\n";
+	}
+}
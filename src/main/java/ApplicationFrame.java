@@ -1,247 +1,376 @@
-import java.awt.BorderLayout;
-import java.awt.Color;
-import java.awt.Dimension;
-import java.awt.EventQueue;
-import java.awt.Font;
-import java.awt.KeyboardFocusManager;
-import java.awt.Toolkit;
-import java.awt.event.ActionEvent;
-import java.awt.event.KeyEvent;
-import java.awt.event.KeyListener;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-
-import javax.swing.ImageIcon;
-import javax.swing.JButton;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.JOptionPane;
-import javax.swing.JRadioButton;
-import javax.swing.JScrollPane;
-import javax.swing.JSplitPane;
-import javax.swing.JTextPane;
-import javax.swing.JToolBar;
-import javax.swing.SwingConstants;
-import javax.swing.Timer;
-import javax.swing.WindowConstants;
-import javax.swing.text.AbstractDocument;
-import javax.swing.text.BadLocationException;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-public class ApplicationFrame extends JFrame {
-
-	private final static Logger logger = LoggerFactory.getLogger(ApplicationFrame.class);
-	private final static long serialVersionUID = 5080413444904954347L;
-	private final static int INIT_WIDTH = 1000;
-	private final static int INIT_HEIGHT = 618;
-
-	private final static int AUTO_PREVIEW_INTERVAL = 600;
-	private final static String WORKING_DIRECTORY = System.getProperty("user.home") + File.separator + ".mpostviewer";
-	private final Path previewMp;
-
-	private final JToolBar toolbar = new JToolBar();
-	private final JTextPane editor = new JTextPane();
-	private final JLabel graph = new JLabel();
-	private final JLabel statusLabel = new JLabel();
-	private final JButton saveButton = new JButton();
-	private final JButton previewButton = new JButton();
-
-	private final EditorFilter editorFilter = new EditorFilter(editor, () -> saveButton.setEnabled(true));
-
-	private final String workingDirectoryPath;
-	private final Timer timer;
-	private final JRadioButton statusIcon = new JRadioButton();
-
-	private final MetapostService metapostService;
-
-	public ApplicationFrame() {
-		super("Metapost Viewer");
-		this.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
-
-		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-		int topX = Math.max(0, (int) ((screenSize.getWidth() - ApplicationFrame.INIT_WIDTH) / 2));
-		int topY = Math.max(0, (int) ((screenSize.getHeight() - ApplicationFrame.INIT_HEIGHT) / 3));
-		this.setPreferredSize(new Dimension(ApplicationFrame.INIT_WIDTH, ApplicationFrame.INIT_HEIGHT));
-		this.setLocation(topX, topY);
-		this.pack();
-
-		File workingDirectory = new File(ApplicationFrame.WORKING_DIRECTORY);
-
-		if (workingDirectory.exists() || workingDirectory.mkdir()) {
-			workingDirectoryPath = workingDirectory.getAbsolutePath();
-			System.setProperty("user.dir", workingDirectoryPath);
-		} else {
-			workingDirectoryPath = System.getProperty("user.dir");
-		}
-		previewMp = Paths.get(workingDirectoryPath, "preview.mp");
-
-		logger.info("Working directory: {}", workingDirectoryPath);
-		metapostService = new MetapostService();
-
-		saveButton.addActionListener(this::save);
-		saveButton.setText("Save");
-		saveButton.setToolTipText("Ctrl+S");
-		toolbar.add(saveButton);
-
-		previewButton.addActionListener(this::preview);
-		previewButton.setText("Preview");
-		previewButton.setToolTipText("Ctrl+P");
-		toolbar.add(previewButton);
-
-		statusIcon.setEnabled(false);
-		statusIcon.setSelected(false);
-		toolbar.add(statusIcon);
-
-		statusLabel.setText("Working directory: " + System.getProperty("user.dir"));
-		statusLabel.setFont(new Font(Font.SERIF, Font.PLAIN, 12));
-
-		((AbstractDocument) editor.getDocument()).setDocumentFilter(editorFilter);
-		KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(e -> {
-			if ((e.getModifiersEx() & KeyEvent.CTRL_DOWN_MASK) == KeyEvent.CTRL_DOWN_MASK) {
-				if (e.getKeyCode() == KeyEvent.VK_S && isFocused() && e.getID() == KeyEvent.KEY_PRESSED) {
-					saveButton.doClick();
-				} else if (e.getKeyCode() == KeyEvent.VK_P && isFocused() && e.getID() == KeyEvent.KEY_PRESSED) {
-					previewButton.doClick();
-				}
-			}
-			return false;
-		});
-
-		timer = new Timer(ApplicationFrame.AUTO_PREVIEW_INTERVAL, this::preview);
-		editor.addKeyListener(new KeyListener() {
-			@Override
-			public void keyTyped(KeyEvent e) {
-			}
-
-			@Override
-			public void keyPressed(KeyEvent e) {
-				if (e.getKeyChar() != KeyEvent.CHAR_UNDEFINED) {
-					timer.stop();
-				}
-			}
-
-			@Override
-			public void keyReleased(KeyEvent e) {
-				if (e.getKeyChar() != KeyEvent.CHAR_UNDEFINED) {
-					timer.restart();
-				}
-			}
-
-		});
-
-		// wczytanie pliku do edytora
-		try {
-			boolean templateLoaded = false;
-			Reader reader;
-			if (Files.exists(previewMp)) {
-				reader = new FileReader(previewMp.toFile());
-			} else {
-				statusLabel.setText("Can't load " + previewMp + ", using template instead.");
-				templateLoaded = true;
-				InputStream is = this.getClass().getResourceAsStream("template.mp");
-				reader = new InputStreamReader(is);
-			}
-			try (BufferedReader br = new BufferedReader(reader)) {
-				String line;
-				while ((line = br.readLine()) != null) {
-					editor.getDocument().insertString(editor.getDocument().getLength(), line + "\n", null);
-				}
-			}
-			if (templateLoaded) {
-				editor.setCaretPosition(editor.getDocument().getLength() - 13);
-			}
-		} catch (IOException | BadLocationException e) {
-			logger.error(e.getMessage(), e);
-		}
-
-		saveButton.setEnabled(false);
-
-		JScrollPane editorScrollPane = new JScrollPane(editor);
-
-		graph.setOpaque(true);
-		graph.setBackground(Color.WHITE);
-		ImageIcon imageIcon = new ImageIcon();
-		graph.setIcon(imageIcon);
-		graph.setHorizontalAlignment(SwingConstants.CENTER);
-		graph.setVerticalAlignment(SwingConstants.CENTER);
-
-		JScrollPane imagePane = new JScrollPane(graph);
-
-		editorScrollPane.setPreferredSize(new Dimension(ApplicationFrame.INIT_WIDTH / 2, ApplicationFrame.INIT_HEIGHT));
-
-		JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, editorScrollPane, imagePane);
-
-		this.getContentPane().add(toolbar, BorderLayout.PAGE_START);
-		this.getContentPane().add(splitPane, BorderLayout.CENTER);
-		this.getContentPane().add(statusLabel, BorderLayout.PAGE_END);
-
-		addWindowListener(new WindowAdapter() {
-			@Override
-			public void windowOpened(WindowEvent e) {
-				editor.requestFocusInWindow();
-			}
-
-			@Override
-			public void windowClosing(WindowEvent e) {
-				if (saveButton.isEnabled()) {
-					int response = JOptionPane.showConfirmDialog(ApplicationFrame.this, "Save file before exit?", "Closing...", JOptionPane.YES_NO_OPTION);
-					if (response == JOptionPane.YES_OPTION) {
-						saveEditorContentsToFile(previewMp);
-					}
-				}
-			}
-		});
-	}
-
-	private void saveEditorContentsToFile(Path targetFile) {
-		try (FileWriter fileWriter = new FileWriter(targetFile.toFile())) {
-			fileWriter.write(editor.getText());
-			saveButton.setEnabled(false);
-		} catch (IOException e) {
-			logger.error(e.getMessage(), e);
-		}
-	}
-
-	private void save(ActionEvent event) {
-		saveEditorContentsToFile(previewMp);
-		statusLabel.setText("File saved: " + previewMp);
-		editor.requestFocusInWindow();
-	}
-
-	private void preview(ActionEvent event) {
-		timer.stop();
-		saveEditorContentsToFile(previewMp);
-
-		EventQueue.invokeLater(() -> {
-			try {
-				statusLabel.setText("Generating preview of " + previewMp);
-				byte[] png = metapostService.renderMetapostToPng(previewMp);
-
-				statusLabel.setText("Loading preview image...");
-				ImageIcon img = new ImageIcon(png);
-				graph.setIcon(img);
-				graph.repaint();
-				statusLabel.setText("Preview loaded");
-				statusIcon.setBackground(Color.GREEN);
-			} catch (IOException e) {
-				logger.error(e.getMessage(), e);
-				statusLabel.setText(e.getMessage());
-				statusIcon.setBackground(Color.RED);
-			}
-			editor.requestFocusInWindow();
-		});
-	}
-}
\ No newline at end of file
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Font;
+import java.awt.KeyboardFocusManager;
+import java.awt.Toolkit;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JRadioButton;
+import javax.swing.JTabbedPane;
+import javax.swing.JToolBar;
+import javax.swing.WindowConstants;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ApplicationFrame extends JFrame {
+
+	private final static Logger logger = LoggerFactory.getLogger(ApplicationFrame.class);
+	private final static long serialVersionUID = 5080413444904954347L;
+	private final static int INIT_WIDTH = 1000;
+	private final static int INIT_HEIGHT = 618;
+
+	private final static String WORKING_DIRECTORY = System.getProperty("user.home") + File.separator + ".mpostviewer";
+	private final Path previewMp;
+
+	private final JToolBar toolbar = new JToolBar();
+	private final JTabbedPane tabs = new JTabbedPane();
+	private final JLabel statusLabel = new JLabel();
+	private final JButton openButton = new JButton();
+	private final JButton saveButton = new JButton();
+	private final JButton previewButton = new JButton();
+	private final JButton closeButton = new JButton();
+	private final JButton exportButton = new JButton();
+	private final JRadioButton statusIcon = new JRadioButton();
+	private final JFileChooser fileChooser = new JFileChooser();
+	private final JFileChooser exportChooser = new JFileChooser();
+
+	private final String workingDirectoryPath;
+	private final Renderer renderer;
+	// one pool for all documents, the selected one renders first
+	private final RenderPool renderPool = new RenderPool(RenderPool.DEFAULT_SIZE);
+	private final RenderMetrics renderMetrics = new RenderMetrics();
+	// created on the first export, most sessions never need its scratch space and threads
+	private ExportPipeline exportPipeline;
+	private FolderWatcher folderWatcher;
+	// the read-only tab showing the watched file which changed last
+	private DocumentTab watchTab;
+
+	public ApplicationFrame() {
+		this(null, List.of(), List.of());
+	}
+
+	// renders with the given renderer, e.g. a RenderClient, or in process if it's null; opens the
+	// given files, or preview.mp in the working directory if there are none. With paths to watch,
+	// a single read-only tab shows whichever of their .mp files changed last
+	public ApplicationFrame(Renderer daemon, List<Path> opened, List<Path> watched) {
+		super("Metapost Viewer");
+		this.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+
+		Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
+		int topX = Math.max(0, (int) ((screenSize.getWidth() - ApplicationFrame.INIT_WIDTH) / 2));
+		int topY = Math.max(0, (int) ((screenSize.getHeight() - ApplicationFrame.INIT_HEIGHT) / 3));
+		this.setPreferredSize(new Dimension(ApplicationFrame.INIT_WIDTH, ApplicationFrame.INIT_HEIGHT));
+		this.setLocation(topX, topY);
+		this.pack();
+
+		File workingDirectory = new File(ApplicationFrame.WORKING_DIRECTORY);
+
+		if (workingDirectory.exists() || workingDirectory.mkdir()) {
+			workingDirectoryPath = workingDirectory.getAbsolutePath();
+			System.setProperty("user.dir", workingDirectoryPath);
+		} else {
+			workingDirectoryPath = System.getProperty("user.dir");
+		}
+		previewMp = Paths.get(workingDirectoryPath, "preview.mp");
+
+		logger.info("Working directory: {}", workingDirectoryPath);
+		renderer = daemon != null ? daemon : new MetapostService(Paths.get(workingDirectoryPath, "cache"));
+
+		openButton.addActionListener(e -> open());
+		openButton.setText("Open");
+		openButton.setToolTipText("Ctrl+O");
+		toolbar.add(openButton);
+
+		saveButton.addActionListener(e -> save());
+		saveButton.setText("Save");
+		saveButton.setToolTipText("Ctrl+S");
+		toolbar.add(saveButton);
+
+		previewButton.addActionListener(e -> {
+			DocumentTab tab = getSelectedTab();
+			if (tab != null) {
+				tab.previewNow();
+				tab.activate();
+			}
+		});
+		previewButton.setText("Preview");
+		previewButton.setToolTipText("Ctrl+P");
+		toolbar.add(previewButton);
+
+		exportButton.addActionListener(e -> export());
+		exportButton.setText("Export");
+		exportButton.setToolTipText("PNG at " + ExportPipeline.DEFAULT_RESOLUTIONS + " dpi, EPS, SVG and PDF (Ctrl+E)");
+		toolbar.add(exportButton);
+
+		closeButton.addActionListener(e -> closeTab(getSelectedTab()));
+		closeButton.setText("Close");
+		closeButton.setToolTipText("Ctrl+W");
+		toolbar.add(closeButton);
+
+		statusIcon.setEnabled(false);
+		statusIcon.setSelected(false);
+		toolbar.add(statusIcon);
+
+		statusLabel.setText("Working directory: " + System.getProperty("user.dir"));
+		statusLabel.setFont(new Font(Font.SERIF, Font.PLAIN, 12));
+
+		fileChooser.setFileFilter(new FileNameExtensionFilter("MetaPost sources", "mp"));
+		fileChooser.setCurrentDirectory(workingDirectory);
+		exportChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		exportChooser.setDialogTitle("Export to");
+
+		KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(e -> {
+			if ((e.getModifiersEx() & KeyEvent.CTRL_DOWN_MASK) == KeyEvent.CTRL_DOWN_MASK && isFocused() && e.getID() == KeyEvent.KEY_PRESSED) {
+				if (e.getKeyCode() == KeyEvent.VK_S) {
+					saveButton.doClick();
+				} else if (e.getKeyCode() == KeyEvent.VK_P) {
+					previewButton.doClick();
+				} else if (e.getKeyCode() == KeyEvent.VK_O) {
+					openButton.doClick();
+				} else if (e.getKeyCode() == KeyEvent.VK_E) {
+					exportButton.doClick();
+				} else if (e.getKeyCode() == KeyEvent.VK_W) {
+					closeButton.doClick();
+				}
+			}
+			return false;
+		});
+
+		tabs.addChangeListener(e -> {
+			DocumentTab tab = getSelectedTab();
+			if (tab != null) {
+				tab.activate();
+			} else {
+				renderPool.setActive(null);
+			}
+			showStatus();
+		});
+
+		// wczytanie plikow do edytora
+		if (watched.isEmpty()) {
+			for (Path file : opened.isEmpty() ? List.of(previewMp) : opened) {
+				openTab(file);
+			}
+		} else {
+			openButton.setVisible(false);
+			saveButton.setVisible(false);
+			watch(watched);
+		}
+		if (tabs.getTabCount() > 0) {
+			tabs.setSelectedIndex(0);
+		}
+		showStatus();
+
+		this.getContentPane().add(toolbar, BorderLayout.PAGE_START);
+		this.getContentPane().add(tabs, BorderLayout.CENTER);
+		this.getContentPane().add(statusLabel, BorderLayout.PAGE_END);
+
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowOpened(WindowEvent e) {
+				DocumentTab tab = getSelectedTab();
+				if (tab != null) {
+					tab.activate();
+				}
+			}
+
+			@Override
+			public void windowClosing(WindowEvent e) {
+				for (DocumentTab tab : getTabs()) {
+					boolean settled = true;
+					if (tab.isModified()) {
+						tabs.setSelectedComponent(tab);
+						int response = JOptionPane.showConfirmDialog(ApplicationFrame.this, "Save " + tab.getFile() + " before exit?", "Closing...", JOptionPane.YES_NO_OPTION);
+						if (response == JOptionPane.YES_OPTION) {
+							settled = tab.save();
+						}
+					}
+					tab.close(settled);
+				}
+				if (folderWatcher != null) {
+					try {
+						folderWatcher.close();
+					} catch (IOException ex) {
+						logger.error(ex.getMessage(), ex);
+					}
+				}
+				renderPool.shutdown();
+			}
+		});
+	}
+
+	private DocumentTab getSelectedTab() {
+		return (DocumentTab) tabs.getSelectedComponent();
+	}
+
+	private List<DocumentTab> getTabs() {
+		List<DocumentTab> documents = new ArrayList<>();
+		for (int i = 0; i < tabs.getTabCount(); i++) {
+			documents.add((DocumentTab) tabs.getComponentAt(i));
+		}
+		return documents;
+	}
+
+	private Optional<DocumentTab> findTab(Path file) {
+		Path absolute = file.toAbsolutePath().normalize();
+		return getTabs().stream().filter(tab -> tab.getFile().equals(absolute)).findFirst();
+	}
+
+	// selects the document if it's open already
+	private DocumentTab openTab(Path file) {
+		Optional<DocumentTab> open = findTab(file);
+		if (open.isPresent()) {
+			tabs.setSelectedComponent(open.get());
+			return open.get();
+		}
+		Path absolute = file.toAbsolutePath().normalize();
+		// the journal of preview.mp stays where older versions kept it
+		EditJournal editJournal = null;
+		if (folderWatcher == null) {
+			String journalName = absolute.equals(previewMp.toAbsolutePath().normalize()) ? "autosave" : "autosave-" + RenderCache.hash(absolute.toString());
+			editJournal = new EditJournal(Paths.get(workingDirectoryPath, journalName));
+		}
+		DocumentTab tab = new DocumentTab(absolute, editJournal, renderer, renderPool, renderMetrics, this::tabChanged);
+		tabs.addTab(tab.getTitle(), null, tab, absolute.toString());
+		tab.load();
+		return tab;
+	}
+
+	private void open() {
+		if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+			// a file which doesn't exist yet starts with the template
+			tabs.setSelectedComponent(openTab(fileChooser.getSelectedFile().toPath()));
+		}
+	}
+
+	private void save() {
+		DocumentTab tab = getSelectedTab();
+		if (tab != null) {
+			tab.save();
+			tab.activate();
+		}
+	}
+
+	// a second click cancels the export of the selected document
+	private void export() {
+		DocumentTab tab = getSelectedTab();
+		if (tab == null) {
+			return;
+		}
+		if (tab.isExporting()) {
+			tab.cancelExport();
+		} else {
+			exportChooser.setSelectedFile(null);
+			exportChooser.setCurrentDirectory(tab.getFile().getParent().toFile());
+			if (exportChooser.showDialog(this, "Export") == JFileChooser.APPROVE_OPTION) {
+				if (exportPipeline == null) {
+					try {
+						exportPipeline = new ExportPipeline(ExportPipeline.DEFAULT_RESOLUTIONS, EnumSet.allOf(ExportPipeline.Format.class), Runtime.getRuntime().availableProcessors());
+					} catch (UncheckedIOException e) {
+						logger.error(e.getMessage(), e);
+						statusLabel.setText(e.getMessage());
+						return;
+					}
+				}
+				tab.export(exportPipeline, exportChooser.getSelectedFile().toPath());
+			}
+		}
+	}
+
+	private void closeTab(DocumentTab tab) {
+		if (tab == null) {
+			return;
+		}
+		boolean settled = true;
+		if (tab.isModified()) {
+			int response = JOptionPane.showConfirmDialog(this, "Save " + tab.getFile() + " before closing?", "Closing...", JOptionPane.YES_NO_CANCEL_OPTION);
+			if (response == JOptionPane.CANCEL_OPTION || response == JOptionPane.CLOSED_OPTION) {
+				return;
+			}
+			if (response == JOptionPane.YES_OPTION) {
+				settled = tab.save();
+			}
+		}
+		tab.close(settled);
+		tabs.remove(tab);
+		if (tab == watchTab) {
+			watchTab = null;
+		}
+	}
+
+	private void tabChanged(DocumentTab tab) {
+		int index = tabs.indexOfComponent(tab);
+		if (index >= 0) {
+			tabs.setTitleAt(index, tab.getTitle());
+			tabs.setToolTipTextAt(index, tab.getFile().toString());
+		}
+		if (tab == getSelectedTab()) {
+			showStatus();
+		}
+	}
+
+	// of the selected document
+	private void showStatus() {
+		DocumentTab tab = getSelectedTab();
+		saveButton.setEnabled(tab != null && tab.isModified());
+		previewButton.setEnabled(tab != null);
+		closeButton.setEnabled(tab != null);
+		exportButton.setEnabled(tab != null);
+		exportButton.setText(tab != null && tab.isExporting() ? "Cancel export" : "Export");
+		if (tab == null) {
+			setTitle("Metapost Viewer");
+			return;
+		}
+		setTitle("Metapost Viewer - " + tab.getFile());
+		statusLabel.setText(tab.getStatus());
+		statusLabel.setToolTipText(tab.getStatusDetails());
+		statusIcon.setBackground(tab.getStatusColor());
+	}
+
+	private void watch(List<Path> paths) {
+		try {
+			folderWatcher = new FolderWatcher(paths, file -> EventQueue.invokeLater(() -> showWatchedFile(file)));
+			folderWatcher.start();
+			Optional<Path> latest = folderWatcher.getFiles().stream().max(Comparator.comparing(file -> file.toFile().lastModified()));
+			if (latest.isPresent()) {
+				showWatchedFile(latest.get());
+			} else {
+				statusLabel.setText("Waiting for .mp files in " + paths);
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			statusLabel.setText(e.getMessage());
+		}
+	}
+
+	// reloads the watch tab with the file, which renders it at full quality, and selects it; one tab
+	// however many files change, so saving a whole directory doesn't open a tab and a render for each
+	private void showWatchedFile(Path file) {
+		if (watchTab == null) {
+			watchTab = openTab(file);
+		} else {
+			watchTab.load(file.toAbsolutePath().normalize());
+		}
+		tabs.setSelectedComponent(watchTab);
+	}
+}
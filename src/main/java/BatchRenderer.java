@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FilenameUtils;
+
+// Headless rendering of many files: Main --batch <dir|file>... --out <dir> [-j N]. Directories
+// are searched for .mp files recursively and mirrored in the output directory. PNGs are written
+// straight from what the rasterizer produced, nothing here is decoded or touches AWT.
+public class BatchRenderer {
+	private static final String USAGE = "Usage: --batch <dir|file.mp>... --out <dir> [-j N]";
+
+	private final MetapostService metapostService;
+	private final Path outputDirectory;
+	private final int parallelism;
+	private final PrintStream out;
+
+	private static class Job {
+		private final Path source;
+		// relative to the output directory, without extension
+		private final String outputName;
+
+		Job(Path source, String outputName) {
+			this.source = source;
+			this.outputName = outputName;
+		}
+	}
+
+	private static class JobResult {
+		private final Job job;
+		private final RenderTimings timings;
+		private final int figures;
+		private final String failure;
+
+		JobResult(Job job, RenderTimings timings, int figures, String failure) {
+			this.job = job;
+			this.timings = timings;
+			this.figures = figures;
+			this.failure = failure;
+		}
+	}
+
+	public BatchRenderer(MetapostService metapostService, Path outputDirectory, int parallelism, PrintStream out) {
+		this.metapostService = metapostService;
+		this.outputDirectory = outputDirectory;
+		this.parallelism = parallelism;
+		this.out = out;
+	}
+
+	// returns the process exit code: 0 if everything rendered, 1 on failures, 2 on bad usage
+	public static int run(List<String> args) {
+		List<Path> inputs = new ArrayList<>();
+		Path outputDirectory = null;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int i = 0; i < args.size(); i++) {
+				String arg = args.get(i);
+				if (arg.equals("--out")) {
+					outputDirectory = Paths.get(args.get(++i));
+				} else if (arg.equals("-j")) {
+					parallelism = Integer.parseInt(args.get(++i));
+				} else if (arg.startsWith("-j")) {
+					parallelism = Integer.parseInt(arg.substring(2));
+				} else {
+					inputs.add(Paths.get(arg));
+				}
+			}
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		if (inputs.isEmpty() || outputDirectory == null || parallelism < 1) {
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		List<Job> jobs;
+		try {
+			jobs = findJobs(inputs);
+			Files.createDirectories(outputDirectory);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return 2;
+		}
+		MetapostService metapostService = new MetapostService(Paths.get(System.getProperty("user.home"), ".mpostviewer", "cache"));
+		return new BatchRenderer(metapostService, outputDirectory, parallelism, System.out).render(jobs) ? 0 : 1;
+	}
+
+	private static List<Job> findJobs(List<Path> inputs) throws IOException {
+		List<Job> jobs = new ArrayList<>();
+		for (Path input : inputs) {
+			if (Files.isDirectory(input)) {
+				try (Stream<Path> files = Files.walk(input)) {
+					for (Path file : files.filter(p -> p.toString().endsWith(".mp") && Files.isRegularFile(p)).sorted().collect(Collectors.toList())) {
+						jobs.add(new Job(file, FilenameUtils.removeExtension(input.relativize(file).toString())));
+					}
+				}
+			} else if (Files.isRegularFile(input)) {
+				jobs.add(new Job(input, FilenameUtils.removeExtension(input.getFileName().toString())));
+			} else {
+				throw new IOException("No such file or directory: " + input);
+			}
+		}
+		return jobs;
+	}
+
+	private boolean render(List<Job> jobs) {
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "metapost-batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger done = new AtomicInteger();
+		long start = System.nanoTime();
+		List<Future<JobResult>> futures = new ArrayList<>();
+		for (Job job : jobs) {
+			futures.add(pool.submit(() -> {
+				JobResult result = renderJob(job);
+				synchronized (out) {
+					out.printf("[%d/%d] %s: %s%n", done.incrementAndGet(), jobs.size(), job.source,
+						result.failure == null ? result.figures + " figure(s), " + result.timings : "FAILED");
+				}
+				return result;
+			}));
+		}
+		List<JobResult> results = new ArrayList<>();
+		try {
+			for (Future<JobResult> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			pool.shutdownNow();
+			return false;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		pool.shutdown();
+		printSummary(results, System.nanoTime() - start);
+		return results.stream().allMatch(result -> result.failure == null);
+	}
+
+	private JobResult renderJob(Job job) {
+		long start = System.nanoTime();
+		try {
+			RenderResult result = metapostService.render(new String(Files.readAllBytes(job.source), Charset.defaultCharset()), RenderSettings.DEFAULT);
+			RenderTimings timings = result.getTimings();
+			long writeStart = System.nanoTime();
+			Path target = outputDirectory.resolve(job.outputName);
+			Files.createDirectories(target.getParent());
+			for (Map.Entry<Integer, PreviewImage> figure : result.getFigures().entrySet()) {
+				String suffix = result.getFigures().size() == 1 ? "" : "-" + figure.getKey();
+				Files.write(target.resolveSibling(target.getFileName() + suffix + ".png"), figure.getValue().getPng());
+			}
+			timings.add("output", System.nanoTime() - writeStart);
+			timings.add("total", System.nanoTime() - start);
+			return new JobResult(job, timings, result.getFigures().size(), null);
+		} catch (IOException e) {
+			return new JobResult(job, null, 0, e.getMessage());
+		} catch (RuntimeException e) {
+			// a bug reached by one input mustn't cost the results of the others
+			return new JobResult(job, null, 0, "Rendering failed: " + e);
+		}
+	}
+
+	private void printSummary(List<JobResult> results, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		List<JobResult> succeeded = results.stream().filter(result -> result.failure == null).collect(Collectors.toList());
+		int figures = succeeded.stream().mapToInt(result -> result.figures).sum();
+		out.printf("%nRendered %d of %d files (%d figures) in %.1f s with %d threads: %.2f files/s, %.2f figures/s%n",
+			succeeded.size(), results.size(), figures, seconds, parallelism, succeeded.size() / seconds, figures / seconds);
+
+		Map<String, List<Long>> stages = new LinkedHashMap<>();
+		for (JobResult result : succeeded) {
+			for (Map.Entry<String, Long> stage : result.timings.getStages().entrySet()) {
+				stages.computeIfAbsent(stage.getKey(), k -> new ArrayList<>()).add(stage.getValue());
+			}
+		}
+		for (Map.Entry<String, List<Long>> stage : stages.entrySet()) {
+			List<Long> samples = stage.getValue();
+			Collections.sort(samples);
+			out.printf("  %-10s p50 %6d ms   p95 %6d ms   (%d samples)%n", stage.getKey(), toMillis(percentile(samples, 50)), toMillis(percentile(samples, 95)), samples.size());
+		}
+
+		for (JobResult result : results) {
+			if (result.failure != null) {
+				out.printf("FAILED %s: %s%n", result.job.source, result.failure);
+			}
+		}
+	}
+
+	// nearest-rank percentile of sorted samples
+	private static long percentile(List<Long> sortedSamples, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sortedSamples.size());
+		return sortedSamples.get(Math.max(rank, 1) - 1);
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,18 @@
+import java.io.IOException;
+import java.util.List;
+
+// The document has errors; they're described by diagnostics, the first one being the message.
+public class CompilationException extends IOException {
+	private static final long serialVersionUID = -6085331478196472213L;
+
+	private final List<Diagnostic> diagnostics;
+
+	public CompilationException(List<Diagnostic> diagnostics) {
+		super(diagnostics.get(0).toString());
+		this.diagnostics = List.copyOf(diagnostics);
+	}
+
+	public List<Diagnostic> getDiagnostics() {
+		return diagnostics;
+	}
+}
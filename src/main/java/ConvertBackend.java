@@ -0,0 +1,12 @@
+public class ConvertBackend extends EpsRasterBackend {
+
+	@Override
+	public String getName() {
+		return "convert";
+	}
+
+	@Override
+	protected String[] getRasterizerCommand(String input, String output, RenderSettings settings) {
+		return new String[] { "convert", "-density", String.valueOf(settings.getResolution()), settings.isAntialiasing() ? "-antialias" : "+antialias", input, output };
+	}
+}
@@ -0,0 +1,30 @@
+// A problem found in a document, on a line numbered from 1 as mpost does.
+public class Diagnostic {
+	private final int line;
+	private final String message;
+	private final String context;
+
+	public Diagnostic(int line, String message, String context) {
+		this.line = line;
+		this.message = message;
+		this.context = context;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	// the source around the problem, may be empty
+	public String getContext() {
+		return context;
+	}
+
+	@Override
+	public String toString() {
+		return "Line " + line + ": " + message;
+	}
+}
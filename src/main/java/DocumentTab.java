@@ -0,0 +1,383 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTextPane;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// One open document with its own editor, highlighting, undo history, autosave journal and preview.
+// Renders go through the frame's shared RenderPool; the frame shows the status of the selected tab
+// and is told whenever it or the title changes.
+public class DocumentTab extends JSplitPane {
+	private static final Logger logger = LoggerFactory.getLogger(DocumentTab.class);
+	private static final long serialVersionUID = -4168836079931360427L;
+	private static final int EDITOR_WIDTH = 500;
+	private static final int EDITOR_HEIGHT = 618;
+
+	// changes only for read-only documents
+	private Path file;
+	// null for read-only documents, e.g. watched files
+	private final EditJournal editJournal;
+	private final Renderer renderer;
+	private final RenderMetrics renderMetrics;
+	private final Consumer<DocumentTab> statusChanged;
+
+	private final JTextPane editor = new JTextPane();
+	private final PreviewViewer previewViewer = new PreviewViewer();
+	private final EditorFilter editorFilter = new EditorFilter(editor, this::edited);
+	private final PreviewScheduler previewScheduler = new PreviewScheduler(editor, this::preview);
+	private final RenderExecutor renderExecutor;
+	private final Highlighter.HighlightPainter errorPainter = new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 200, 200));
+	private Object errorMark;
+
+	private boolean modified;
+	private String status = "";
+	private String statusDetails;
+	private Color statusColor;
+	private long loadGeneration;
+	private SwingWorker<List<Path>, String> exportWorker;
+
+	public DocumentTab(Path file, EditJournal editJournal, Renderer renderer, RenderPool renderPool, RenderMetrics renderMetrics, Consumer<DocumentTab> statusChanged) {
+		super(JSplitPane.HORIZONTAL_SPLIT);
+		this.file = file;
+		this.editJournal = editJournal;
+		this.renderer = renderer;
+		this.renderMetrics = renderMetrics;
+		this.statusChanged = statusChanged;
+		renderExecutor = new RenderExecutor(renderer, renderPool);
+
+		editor.setEditable(false);
+		JScrollPane editorScrollPane = new JScrollPane(editor);
+		editorScrollPane.setPreferredSize(new Dimension(EDITOR_WIDTH, EDITOR_HEIGHT));
+		setLeftComponent(editorScrollPane);
+		setRightComponent(new JScrollPane(previewViewer));
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public boolean isModified() {
+		return modified;
+	}
+
+	public String getTitle() {
+		return file.getFileName() + (modified ? " *" : "");
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	// tool tip of the status, null if there's none
+	public String getStatusDetails() {
+		return statusDetails;
+	}
+
+	// of the last render, null before the first one
+	public Color getStatusColor() {
+		return statusColor;
+	}
+
+	// reads the file in one go and builds the highlighted document off the EDT, then renders it;
+	// edits which didn't get saved before a crash are recovered from the journal. A file which
+	// doesn't exist yet starts with the template.
+	public void load() {
+		boolean templateLoaded = !Files.exists(file);
+		if (templateLoaded) {
+			setStatus("Can't load " + file + ", using template instead.");
+		}
+		long generation = ++loadGeneration;
+		editor.setEditable(false);
+		new SwingWorker<EditorDocument, Void>() {
+			private boolean recovered;
+			private boolean malformed;
+
+			@Override
+			protected EditorDocument doInBackground() throws IOException, BadLocationException {
+				String text;
+				if (templateLoaded) {
+					try (InputStream is = DocumentTab.class.getResourceAsStream("template.mp")) {
+						text = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+					}
+				} else {
+					byte[] bytes = Files.readAllBytes(file);
+					try {
+						text = Charset.defaultCharset().newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+					} catch (CharacterCodingException e) {
+						// e.g. Latin-2 comments in a UTF-8 locale; opened with replacement characters, as FileReader did
+						text = new String(bytes, Charset.defaultCharset());
+						malformed = true;
+					}
+				}
+				EditorDocument document = EditorDocument.load(text);
+				if (editJournal == null) {
+					return document;
+				}
+				String journaled = editJournal.recover();
+				if (journaled != null && !journaled.equals(document.getText(0, document.getLength()))) {
+					recovered = true;
+					document = EditorDocument.load(journaled);
+				}
+				try {
+					editJournal.start(document.getText(0, document.getLength()));
+				} catch (IOException e) {
+					// editing works without it
+					logger.error(e.getMessage(), e);
+				}
+				return document;
+			}
+
+			@Override
+			protected void done() {
+				if (generation != loadGeneration) {
+					// the file changed again meanwhile
+					return;
+				}
+				try {
+					EditorDocument document = get();
+					editorFilter.install(document);
+					modified = false;
+					if (editJournal != null) {
+						editJournal.attach(document);
+					}
+					if (recovered) {
+						modified = true;
+						setStatus("Recovered unsaved changes to " + file);
+					} else if (malformed) {
+						setStatus(file + " isn't valid " + Charset.defaultCharset() + ", the invalid bytes were replaced and saving will keep the replacements");
+					} else if (templateLoaded) {
+						editor.setCaretPosition(editor.getDocument().getLength() - 13);
+					}
+					previewScheduler.previewNow();
+				} catch (InterruptedException | ExecutionException e) {
+					logger.error(e.getMessage(), e);
+					setStatus("Can't load " + file);
+				}
+				editor.setEditable(editJournal != null);
+				editor.requestFocusInWindow();
+			}
+		}.execute();
+	}
+
+	// shows another file in a read-only tab, e.g. the watched file which changed last; the preview
+	// of the previous one stays until the new one is rendered
+	public void load(Path newFile) {
+		if (editJournal != null) {
+			throw new IllegalStateException("Only read-only documents can switch files");
+		}
+		file = newFile;
+		statusChanged.accept(this);
+		load();
+	}
+
+	// written next to the target and forced to disk before it's renamed over it, so a crash leaves
+	// either the old or the new file; a symlink is followed to the file it points at, which keeps
+	// its permissions
+	public boolean save() {
+		Path temp = null;
+		try {
+			Path target = Files.exists(file) ? file.toRealPath() : file.toAbsolutePath();
+			// created like any new file, so that one gets the usual permissions
+			temp = target.resolveSibling(target.getFileName() + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				if (Files.exists(target) && Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class)) {
+					Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+				}
+				ByteBuffer buffer = Charset.defaultCharset().newEncoder().encode(CharBuffer.wrap(editor.getText()));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			modified = false;
+			setStatus("File saved: " + file);
+			return true;
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			if (temp != null) {
+				temp.toFile().delete();
+			}
+			setStatus("Can't save " + file);
+			return false;
+		}
+	}
+
+	public boolean isExporting() {
+		return exportWorker != null;
+	}
+
+	// exports what's in the editor, saved or not, to the directory; progress goes to the status
+	public void export(ExportPipeline exportPipeline, Path directory) {
+		String source = editor.getText();
+		String baseName = FilenameUtils.removeExtension(file.getFileName().toString());
+		exportWorker = new SwingWorker<List<Path>, String>() {
+			@Override
+			protected List<Path> doInBackground() throws IOException {
+				return exportPipeline.export(source, directory, baseName, (exported, done, total) -> publish("Exported " + exported + " (" + done + "/" + total + ")"));
+			}
+
+			@Override
+			protected void process(List<String> progress) {
+				if (exportWorker == this) {
+					setStatus(progress.get(progress.size() - 1));
+				}
+			}
+
+			@Override
+			protected void done() {
+				exportWorker = null;
+				try {
+					setStatus("Exported " + get().size() + " files to " + directory);
+				} catch (CancellationException e) {
+					setStatus("Export cancelled");
+				} catch (InterruptedException | ExecutionException e) {
+					Throwable cause = e.getCause() != null ? e.getCause() : e;
+					logger.error(cause.getMessage(), cause);
+					if (cause instanceof CompilationException) {
+						markError(((CompilationException) cause).getDiagnostics().get(0), true);
+					}
+					setStatus("Export failed: " + cause.getMessage());
+				}
+			}
+		};
+		setStatus("Exporting to " + directory + "...");
+		exportWorker.execute();
+	}
+
+	// stops the conversions and the programs they run
+	public void cancelExport() {
+		if (exportWorker != null) {
+			exportWorker.cancel(true);
+		}
+	}
+
+	public void previewNow() {
+		previewScheduler.previewNow();
+	}
+
+	// called when the tab gets selected
+	public void activate() {
+		renderExecutor.activate();
+		editor.requestFocusInWindow();
+	}
+
+	// the journal is only needed after a crash, or when saving failed
+	public void close(boolean settled) {
+		cancelExport();
+		previewScheduler.stop();
+		renderExecutor.shutdown();
+		if (editJournal != null) {
+			try {
+				if (settled) {
+					editJournal.discard();
+				}
+				editJournal.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private void edited() {
+		if (!modified) {
+			modified = true;
+			statusChanged.accept(this);
+		}
+	}
+
+	private void setStatus(String text) {
+		status = text;
+		statusChanged.accept(this);
+	}
+
+	// started by the preview scheduler, which has to be told when the render is over; errors
+	// of previews the user asked for move the caret, others would get in the way of typing
+	private void preview(RenderSettings settings, boolean requested) {
+		RenderTimings timings = new RenderTimings();
+		long start = System.nanoTime();
+		// the only copy of the text, saving is up to the user
+		String source = editor.getText();
+		timings.add("snapshot", System.nanoTime() - start);
+
+		setStatus("Generating preview...");
+		renderExecutor.submit(source, settings, timings, figures -> {
+			long displayStart = System.nanoTime();
+			// drafts are swapped for the full renders in place, at the same size
+			previewViewer.setFigures(figures, settings.getDisplayScale());
+			timings.add("display", System.nanoTime() - displayStart);
+			renderMetrics.record(source, figures.size(), timings);
+
+			String loaded = (settings == RenderSettings.DRAFT ? "Draft preview" : "Preview") + (figures.size() > 1 ? " of " + figures.size() + " figures" : "") + " loaded";
+			statusDetails = "<html>" + (renderMetrics.getSummary() + "\n" + renderer).replace("\n", "<br>") + "</html>";
+			statusColor = Color.GREEN;
+			clearErrorMark();
+			setStatus(loaded + " in " + TimeUnit.NANOSECONDS.toMillis(timings.getTotal()) + " ms (" + timings + ")");
+			previewScheduler.renderFinished(true);
+		}, e -> {
+			logger.error(e.getMessage(), e);
+			statusColor = e instanceof RenderTimeoutException ? Color.ORANGE : Color.RED;
+			if (e instanceof CompilationException) {
+				markError(((CompilationException) e).getDiagnostics().get(0), requested);
+			} else {
+				clearErrorMark();
+			}
+			setStatus(e.getMessage());
+			// the last good preview stays
+			previewScheduler.renderFinished(false);
+		});
+	}
+
+	private void markError(Diagnostic diagnostic, boolean moveCaret) {
+		clearErrorMark();
+		Element root = editor.getDocument().getDefaultRootElement();
+		if (diagnostic.getLine() < 1) {
+			return;
+		}
+		Element line = root.getElement(Math.min(diagnostic.getLine(), root.getElementCount()) - 1);
+		try {
+			errorMark = editor.getHighlighter().addHighlight(line.getStartOffset(), line.getEndOffset(), errorPainter);
+			if (moveCaret) {
+				editor.setCaretPosition(line.getStartOffset());
+			}
+		} catch (BadLocationException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void clearErrorMark() {
+		if (errorMark != null) {
+			editor.getHighlighter().removeHighlight(errorMark);
+			errorMark = null;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Crash recovery for the editor: every insert and remove is appended to journal-<epoch>, and the
+// appends are written and forced to disk together every COMMIT_INTERVAL. Once a journal gets big,
+// writing continues in a new epoch while a checkpoint of the whole text is written in the background
+// and renamed into place; older journals are deleted only after that. Recovery replays the journals
+// of the checkpoint's epoch and later ones over it, stopping at the first torn or damaged record.
+public class EditJournal implements DocumentListener, Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(EditJournal.class);
+	private static final int CHECKPOINT_MAGIC = 0x4d50434b;
+	private static final byte INSERT = 1;
+	private static final byte REMOVE = 2;
+	private static final long COMMIT_INTERVAL = 500;
+	private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+	private final Path directory;
+	private final Path checkpointFile;
+	private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "edit-journal");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// records not yet handed to the committer, guarded by this
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	// compactions whose switch to the new journal hasn't happened yet, the pending records belong
+	// after it; guarded by this
+	private int compactionsQueued;
+	// touched by the committer thread only
+	private FileChannel journal;
+	private long epoch;
+	private long journalSize;
+	private Document document;
+
+	public EditJournal(Path directory) {
+		this.directory = directory;
+		checkpointFile = directory.resolve("checkpoint");
+		committer.scheduleWithFixedDelay(this::commit, COMMIT_INTERVAL, COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	// the text as it was when the previous session ended, null if there's nothing to recover
+	public String recover() {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpointFile))) {
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				return null;
+			}
+			long checkpointEpoch = in.readLong();
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			CRC32 crc = new CRC32();
+			crc.update(text);
+			if (in.readInt() != (int) crc.getValue()) {
+				logger.warn("Damaged autosave checkpoint in {}", directory);
+				return null;
+			}
+			StringBuilder sb = new StringBuilder(new String(text, StandardCharsets.UTF_8));
+			for (Path journalFile : journalFiles(checkpointEpoch)) {
+				if (!replay(journalFile, sb)) {
+					break;
+				}
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// starts a new session with a checkpoint of the given text; call before any edits are journaled
+	public void start(String text) throws IOException {
+		await(committer.submit(() -> {
+			Files.createDirectories(directory);
+			// journals of an earlier session which compacted before it crashed may still be there,
+			// the new checkpoint has to come after all of them
+			long newEpoch = epoch + 1;
+			for (Path journalFile : journalFiles(newEpoch)) {
+				newEpoch = Math.max(newEpoch, epochOf(journalFile) + 1);
+			}
+			switchJournal(newEpoch);
+			writeCheckpoint(newEpoch, text);
+			deleteJournalsBefore(newEpoch);
+			return null;
+		}));
+	}
+
+	// journals the edits of the document, whose text has to be the one given to start()
+	public void attach(Document journaledDocument) {
+		if (document != null) {
+			document.removeDocumentListener(this);
+		}
+		document = journaledDocument;
+		document.addDocumentListener(this);
+	}
+
+	// forgets the session, e.g. once the user saved or discarded the changes
+	public void discard() throws IOException {
+		if (document != null) {
+			document.removeDocumentListener(this);
+			document = null;
+		}
+		synchronized (this) {
+			pending = new ByteArrayOutputStream();
+		}
+		await(committer.submit(() -> {
+			closeJournal();
+			FileUtils.deleteQuietly(directory.toFile());
+			return null;
+		}));
+	}
+
+	// stops journaling, what's been journaled so far is kept for recover()
+	@Override
+	public void close() throws IOException {
+		if (document != null) {
+			document.removeDocumentListener(this);
+			document = null;
+		}
+		try {
+			await(committer.submit(() -> {
+				commit();
+				closeJournal();
+				return null;
+			}));
+		} finally {
+			committer.shutdown();
+		}
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		try {
+			byte[] text = e.getDocument().getText(e.getOffset(), e.getLength()).getBytes(StandardCharsets.UTF_8);
+			append(INSERT, e.getOffset(), text.length, text);
+		} catch (BadLocationException ex) {
+			logger.error(ex.getMessage(), ex);
+		}
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		append(REMOVE, e.getOffset(), e.getLength(), null);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+		// attributes aren't journaled
+	}
+
+	private void append(byte type, int offset, int length, byte[] text) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(13 + (text != null ? text.length : 0));
+		try (DataOutputStream out = new DataOutputStream(record)) {
+			out.writeByte(type);
+			out.writeInt(offset);
+			out.writeInt(length);
+			if (text != null) {
+				out.write(text);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(record.toByteArray());
+			out.writeInt((int) crc.getValue());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		boolean compact;
+		synchronized (this) {
+			pending.writeBytes(record.toByteArray());
+			compact = journalSize + pending.size() > COMPACTION_THRESHOLD;
+		}
+		if (compact) {
+			compact();
+		}
+	}
+
+	// on the EDT, so that the snapshot and the switch to the new journal happen between two edits
+	private void compact() {
+		String text;
+		try {
+			text = document.getText(0, document.getLength());
+		} catch (BadLocationException e) {
+			logger.error(e.getMessage(), e);
+			return;
+		}
+		synchronized (this) {
+			// the edits so far go to the current journal, the following ones to the new one
+			ByteArrayOutputStream committed = pending;
+			pending = new ByteArrayOutputStream();
+			journalSize = 0;
+			compactionsQueued++;
+			committer.execute(() -> {
+				try {
+					write(committed);
+					long newEpoch = epoch + 1;
+					switchJournal(newEpoch);
+					writeCheckpoint(newEpoch, text);
+					deleteJournalsBefore(newEpoch);
+				} catch (IOException e) {
+					logger.error(e.getMessage(), e);
+				} finally {
+					synchronized (this) {
+						compactionsQueued--;
+					}
+				}
+			});
+		}
+	}
+
+	// group commit; a commit which comes before a queued compaction leaves the records to the
+	// commits after it, they'd end up in the journal the compaction deletes
+	private void commit() {
+		ByteArrayOutputStream records;
+		synchronized (this) {
+			if (pending.size() == 0 || compactionsQueued > 0) {
+				return;
+			}
+			records = pending;
+			pending = new ByteArrayOutputStream();
+			journalSize += records.size();
+		}
+		try {
+			write(records);
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void write(ByteArrayOutputStream records) throws IOException {
+		if (journal == null || records.size() == 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+		journal.force(false);
+	}
+
+	private void switchJournal(long newEpoch) throws IOException {
+		closeJournal();
+		epoch = newEpoch;
+		journal = FileChannel.open(directory.resolve("journal-" + epoch), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	private void writeCheckpoint(long checkpointEpoch, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		Path temp = Files.createTempFile(directory, "checkpoint", ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 20);
+			buffer.putInt(CHECKPOINT_MAGIC).putLong(checkpointEpoch).putInt(bytes.length).put(bytes).putInt((int) crc.getValue()).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// false if the journal ends with a torn or damaged record, later journals can't be trusted then
+	private static boolean replay(Path journalFile, StringBuilder text) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(journalFile))) {
+			while (true) {
+				int type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					return true;
+				}
+				int offset = in.readInt();
+				int length = in.readInt();
+				byte[] inserted = type == INSERT ? in.readNBytes(length) : new byte[0];
+				CRC32 crc = new CRC32();
+				ByteBuffer header = ByteBuffer.allocate(9).put((byte) type).putInt(offset).putInt(length);
+				crc.update(header.array());
+				crc.update(inserted);
+				if (in.readInt() != (int) crc.getValue() || inserted.length != (type == INSERT ? length : 0) || offset < 0 || offset > text.length()) {
+					return false;
+				}
+				if (type == INSERT) {
+					text.insert(offset, new String(inserted, StandardCharsets.UTF_8));
+				} else if (type == REMOVE && offset + length <= text.length()) {
+					text.delete(offset, offset + length);
+				} else {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			// a record cut short by a crash
+			return false;
+		}
+	}
+
+	// only once a checkpoint of a later epoch is in place
+	private void deleteJournalsBefore(long newEpoch) throws IOException {
+		for (Path journalFile : journalFiles(0)) {
+			if (epochOf(journalFile) < newEpoch) {
+				Files.deleteIfExists(journalFile);
+			}
+		}
+	}
+
+	private List<Path> journalFiles(long fromEpoch) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*")) {
+			for (Path file : stream) {
+				if (epochOf(file) >= fromEpoch) {
+					files.add(file);
+				}
+			}
+		}
+		Collections.sort(files, (a, b) -> Long.compare(epochOf(a), epochOf(b)));
+		return files;
+	}
+
+	private static long epochOf(Path journalFile) {
+		try {
+			return Long.parseLong(journalFile.getFileName().toString().substring("journal-".length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the journal", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+}
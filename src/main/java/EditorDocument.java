@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Segment;
+
+// A styled document built in a single batch insert, with the highlighting done while
+// building the element structure. Safe to create off the EDT as long as it's not yet
+// installed in an editor.
+public class EditorDocument extends DefaultStyledDocument {
+	private static final long serialVersionUID = -3419622883563960931L;
+
+	private final List<EditorState> lineStates = new ArrayList<>();
+
+	public static EditorDocument load(String text) throws BadLocationException {
+		EditorDocument document = new EditorDocument();
+		document.loadText(text);
+		return document;
+	}
+
+	// lexer state at the start of every line, as expected by SyntaxHighlighter
+	public List<EditorState> getLineStates() {
+		return Collections.unmodifiableList(lineStates);
+	}
+
+	private void loadText(String text) throws BadLocationException {
+		text = text.replace("\r\n", "\n").replace('\r', '\n');
+		if (!text.isEmpty() && !text.endsWith("\n")) {
+			text += "\n";
+		}
+		char[] chars = text.toCharArray();
+		List<ElementSpec> specs = new ArrayList<>();
+		EditorState state = EditorState.NORMAL;
+
+		specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+		int lineStart = 0;
+		while (lineStart < chars.length) {
+			int lineEnd = text.indexOf('\n', lineStart) + 1;
+			lineStates.add(state);
+			specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+			ContentBuilder content = new ContentBuilder(chars, lineStart, specs);
+			state = MetapostLexer.lexLine(new Segment(chars, lineStart, lineEnd - lineStart), state, content::token);
+			content.finish(lineEnd - lineStart);
+			specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+			lineStart = lineEnd;
+		}
+		specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+		lineStates.add(state);
+
+		if (chars.length > 0) {
+			insert(0, specs.toArray(new ElementSpec[0]));
+		}
+	}
+
+	// merges adjacent tokens of the same style into a single content element
+	private static class ContentBuilder {
+		private final char[] chars;
+		private final int lineStart;
+		private final List<ElementSpec> specs;
+		private int runStart;
+		private int runEnd;
+		private AttributeSet runStyle;
+
+		ContentBuilder(char[] chars, int lineStart, List<ElementSpec> specs) {
+			this.chars = chars;
+			this.lineStart = lineStart;
+			this.specs = specs;
+		}
+
+		void token(int start, int length, FontStyling style) {
+			if (start > runEnd) {
+				token(runEnd, start - runEnd, FontStyling.NORMAL);
+			}
+			if (runStyle != style.getAttributeSet()) {
+				flushRun();
+				runStart = start;
+				runStyle = style.getAttributeSet();
+			}
+			runEnd = start + length;
+		}
+
+		void finish(int lineLength) {
+			if (lineLength > runEnd) {
+				token(runEnd, lineLength - runEnd, FontStyling.NORMAL);
+			}
+			flushRun();
+		}
+
+		private void flushRun() {
+			if (runEnd > runStart) {
+				// ElementSpec copies the whole array it's given, so hand it just the run
+				char[] run = Arrays.copyOfRange(chars, lineStart + runStart, lineStart + runEnd);
+				specs.add(new ElementSpec(runStyle, ElementSpec.ContentType, run, 0, run.length));
+			}
+		}
+	}
+}
@@ -1,10 +1,5 @@
+// Lexer state at a line break; comments end with their line, so there's no state for them.
 public enum EditorState {
-	DONE,
 	NORMAL,
-	COMMENT,
-	WORD,
-	DIGITS,
-	QUOTED,
-	LQUOTE,
-	RQUOTE
-}
\ No newline at end of file
+	QUOTED
+}
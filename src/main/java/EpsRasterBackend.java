@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+
+import org.apache.commons.io.FilenameUtils;
+
+// mpost writes EPS, which is then rasterized by an external program.
+public abstract class EpsRasterBackend implements OutputBackend {
+	private static final Duration RASTERIZER_TIMEOUT = Processes.timeout("rasterizer", 30);
+
+	@Override
+	public List<String> getMetapostOptions(RenderSettings settings) {
+		return List.of();
+	}
+
+	@Override
+	public Path toPng(Path compilerOutputFile, RenderSettings settings) throws IOException, InterruptedException {
+		String baseName = FilenameUtils.getBaseName(compilerOutputFile.getFileName().toString()) + "-" + FilenameUtils.getExtension(compilerOutputFile.getFileName().toString());
+		Path epsFile = Files.move(compilerOutputFile, compilerOutputFile.resolveSibling(baseName + ".eps"), StandardCopyOption.REPLACE_EXISTING);
+		Path outputFile = epsFile.resolveSibling(baseName + ".png");
+		Files.deleteIfExists(outputFile);
+
+		Processes.run(getRasterizerCommand(epsFile.getFileName().toString(), outputFile.getFileName().toString(), settings), epsFile.getParent(), RASTERIZER_TIMEOUT);
+		if (!Files.exists(outputFile)) {
+			throw new IOException("Unable to convert eps to png with " + getName() + ".");
+		}
+		return outputFile;
+	}
+
+	protected abstract String[] getRasterizerCommand(String input, String output, RenderSettings settings);
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+
+// Files for publishing: mpost runs once and writes EPS (with fonts, prologues=3), then every figure
+// is converted to PNG at each resolution (gs), SVG (dvisvgm) and PDF (gs) in parallel, and copied
+// as EPS. Each file is renamed into the target directory once complete. Cancelling is interrupting
+// the thread in export(), which stops the conversions and kills the programs they run.
+//
+// Main --export <file.mp>... --out <dir> [--dpi 72,150,300] [--format png,eps,svg,pdf] [-j N]
+public class ExportPipeline {
+	private static final String USAGE = "Usage: --export <file.mp>... --out <dir> [--dpi 72,150,300] [--format png,eps,svg,pdf] [-j N]";
+	private static final Duration METAPOST_TIMEOUT = Processes.timeout("mpost", 30);
+	private static final Duration CONVERSION_TIMEOUT = Processes.timeout("export", 60);
+	private static final String JOB_NAME = "job";
+	public static final List<Integer> DEFAULT_RESOLUTIONS = List.of(72, 150, 300);
+
+	public enum Format {
+		PNG, EPS, SVG, PDF
+	}
+
+	public interface Progress {
+		// called on a conversion thread once the file is in place
+		void exported(Path file, int done, int total);
+	}
+
+	private final List<Integer> resolutions;
+	private final Set<Format> formats;
+	private final ScratchSpace scratchSpace;
+	private final GhostscriptBackend ghostscript = new GhostscriptBackend();
+	private final ExecutorService conversionPool;
+
+	public ExportPipeline(List<Integer> resolutions, Set<Format> formats, int parallelism) {
+		this.resolutions = resolutions;
+		this.formats = formats;
+		try {
+			scratchSpace = new ScratchSpace();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to create a session directory", e);
+		}
+		conversionPool = Executors.newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "export");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// returns the process exit code: 0 if everything got exported, 1 on failures, 2 on bad usage
+	public static int run(List<String> args) {
+		List<Path> inputs = new ArrayList<>();
+		Path outputDirectory = null;
+		List<Integer> resolutions = DEFAULT_RESOLUTIONS;
+		Set<Format> formats = EnumSet.allOf(Format.class);
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int i = 0; i < args.size(); i++) {
+				String arg = args.get(i);
+				if (arg.equals("--out")) {
+					outputDirectory = Paths.get(args.get(++i));
+				} else if (arg.equals("--dpi")) {
+					resolutions = new ArrayList<>();
+					for (String resolution : args.get(++i).split(",")) {
+						resolutions.add(Integer.parseInt(resolution.trim()));
+					}
+				} else if (arg.equals("--format")) {
+					formats = EnumSet.noneOf(Format.class);
+					for (String format : args.get(++i).split(",")) {
+						formats.add(Format.valueOf(format.trim().toUpperCase(Locale.ROOT)));
+					}
+				} else if (arg.equals("-j")) {
+					parallelism = Integer.parseInt(args.get(++i));
+				} else if (arg.startsWith("-j")) {
+					parallelism = Integer.parseInt(arg.substring(2));
+				} else {
+					inputs.add(Paths.get(arg));
+				}
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		if (inputs.isEmpty() || outputDirectory == null || parallelism < 1 || formats.isEmpty() || resolutions.stream().anyMatch(resolution -> resolution < 1)) {
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		ExportPipeline pipeline = new ExportPipeline(resolutions, formats, parallelism);
+		boolean succeeded = true;
+		for (Path input : inputs) {
+			try {
+				Files.createDirectories(outputDirectory);
+				String baseName = FilenameUtils.removeExtension(input.getFileName().toString());
+				pipeline.export(new String(Files.readAllBytes(input), Charset.defaultCharset()), outputDirectory, baseName,
+					(file, done, total) -> System.out.printf("[%d/%d] %s%n", done, total, file));
+			} catch (IOException e) {
+				System.err.println("FAILED " + input + ": " + e.getMessage());
+				succeeded = false;
+			}
+		}
+		return succeeded ? 0 : 1;
+	}
+
+	// exports every figure of the source to the directory, as baseName[-<figure>][-<dpi>dpi].<format>
+	// with the figure number only if there are several figures, and the resolution only if there
+	// are several resolutions; returns the exported files
+	public List<Path> export(String source, Path directory, String baseName, Progress progress) throws IOException {
+		Path workingDir = scratchSpace.acquire();
+		List<Future<Path>> conversions = new ArrayList<>();
+		try {
+			SortedMap<Integer, Path> epsFiles = compile(source, workingDir);
+			List<Callable<Path>> tasks = new ArrayList<>();
+			for (Map.Entry<Integer, Path> epsFile : epsFiles.entrySet()) {
+				String name = baseName + (epsFiles.size() > 1 ? "-" + epsFile.getKey() : "");
+				tasks.addAll(conversions(epsFile.getValue(), directory, name));
+			}
+			AtomicInteger done = new AtomicInteger();
+			for (Callable<Path> task : tasks) {
+				conversions.add(conversionPool.submit(() -> {
+					Path file = task.call();
+					// reported in order
+					synchronized (done) {
+						progress.exported(file, done.incrementAndGet(), tasks.size());
+					}
+					return file;
+				}));
+			}
+			List<Path> exported = new ArrayList<>();
+			for (Future<Path> conversion : conversions) {
+				exported.add(conversion.get());
+			}
+			return exported;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export cancelled");
+		} finally {
+			conversions.forEach(conversion -> conversion.cancel(true));
+			scratchSpace.release(workingDir);
+		}
+	}
+
+	// one mpost run, whatever number of formats and resolutions follows
+	private SortedMap<Integer, Path> compile(String source, Path workingDir) throws IOException, InterruptedException {
+		Path sourceFile = Files.writeString(workingDir.resolve(JOB_NAME + ".mp"), source);
+		TranscriptParser transcript = new TranscriptParser();
+		String[] command = { "mpost", "-interaction=nonstopmode", "-s", "prologues=3", sourceFile.getFileName().toString(), "end" };
+		int exitCode = Processes.run(command, workingDir, METAPOST_TIMEOUT, transcript).getExitCode();
+		SortedMap<Integer, Path> epsFiles = MetapostService.findFigureFiles(workingDir, JOB_NAME);
+		if (transcript.getDiagnostic() != null) {
+			throw new CompilationException(List.of(transcript.getDiagnostic()));
+		} else if (exitCode != 0) {
+			throw new IOException("Compilation failed. Metapost returned code " + exitCode);
+		} else if (epsFiles.isEmpty()) {
+			throw new IOException("Metapost produced no figures, is there a beginfig/endfig block?");
+		}
+		return epsFiles;
+	}
+
+	// the conversions of one figure, each writes a file of its own next to the EPS
+	private List<Callable<Path>> conversions(Path epsFile, Path directory, String name) {
+		Path workingDir = epsFile.getParent();
+		String input = epsFile.getFileName().toString();
+		List<Callable<Path>> tasks = new ArrayList<>();
+		if (formats.contains(Format.EPS)) {
+			tasks.add(() -> install(epsFile, directory.resolve(name + ".eps")));
+		}
+		if (formats.contains(Format.PNG)) {
+			for (int resolution : resolutions) {
+				String output = name + (resolutions.size() > 1 ? "-" + resolution + "dpi" : "") + ".png";
+				String[] command = ghostscript.getRasterizerCommand(input, output, new RenderSettings(resolution, true));
+				tasks.add(() -> install(convert(command, workingDir.resolve(output), "PNG"), directory.resolve(output)));
+			}
+		}
+		if (formats.contains(Format.SVG)) {
+			String output = name + ".svg";
+			String[] command = { "dvisvgm", "--eps", "--no-fonts", "--output=" + output, input };
+			tasks.add(() -> install(convert(command, workingDir.resolve(output), "SVG"), directory.resolve(output)));
+		}
+		if (formats.contains(Format.PDF)) {
+			String output = name + ".pdf";
+			String[] command = { ghostscript.getName(), "-dBATCH", "-dNOPAUSE", "-dQUIET", "-dSAFER", "-dEPSCrop", "-sDEVICE=pdfwrite", "-sOutputFile=" + output, input };
+			tasks.add(() -> install(convert(command, workingDir.resolve(output), "PDF"), directory.resolve(output)));
+		}
+		return tasks;
+	}
+
+	private static Path convert(String[] command, Path outputFile, String format) throws IOException, InterruptedException {
+		Processes.run(command, outputFile.getParent(), CONVERSION_TIMEOUT);
+		if (!Files.exists(outputFile)) {
+			throw new IOException("Unable to convert eps to " + format + " with " + command[0] + ".");
+		}
+		return outputFile;
+	}
+
+	// copied next to the target and renamed over it, readers never see a partial file
+	private static Path install(Path file, Path target) throws IOException {
+		Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+			return Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Reports .mp files changed by other programs, given files and whole directory trees, with the
+// platform's file change notifications rather than polling. Editors often write a file several
+// times per save, so a file is reported once its events stop for DEBOUNCE, and only if its size or
+// modification time actually changed. Directories created later are watched as well.
+public class FolderWatcher implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(FolderWatcher.class);
+	private static final long DEBOUNCE = 300;
+
+	private final WatchService watchService;
+	private final Consumer<Path> onChange;
+	private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+	// directories whose every .mp file is watched, as opposed to parents of single files
+	private final Set<Path> trees = ConcurrentHashMap.newKeySet();
+	private final Set<Path> files = ConcurrentHashMap.newKeySet();
+	private final Map<Path, String> lastSeen = new ConcurrentHashMap<>();
+	private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService debouncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "folder-watcher-debounce");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Thread thread = new Thread(this::watch, "folder-watcher");
+
+	// onChange is called on a background thread
+	public FolderWatcher(List<Path> paths, Consumer<Path> onChange) throws IOException {
+		this.onChange = onChange;
+		watchService = FileSystems.getDefault().newWatchService();
+		for (Path path : paths) {
+			Path absolute = path.toAbsolutePath().normalize();
+			if (Files.isDirectory(absolute)) {
+				registerTree(absolute, true);
+			} else if (Files.isRegularFile(absolute)) {
+				files.add(absolute);
+				lastSeen.put(absolute, stamp(absolute));
+				register(absolute.getParent());
+			} else {
+				throw new IOException("No such file or directory: " + path);
+			}
+		}
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	// every watched .mp file at the moment
+	public List<Path> getFiles() {
+		List<Path> watched = new ArrayList<>(files);
+		watched.addAll(lastSeen.keySet().stream().filter(file -> !files.contains(file)).collect(Collectors.toList()));
+		return watched;
+	}
+
+	@Override
+	public void close() throws IOException {
+		debouncer.shutdownNow();
+		watchService.close();
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path directory = directories.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						// events were lost, look at every file
+						logger.warn("Too many changes at once, checking all watched files");
+						getFiles().forEach(this::changed);
+					} else if (directory != null) {
+						changed(directory.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					directories.remove(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			logger.debug("Folder watcher stopped");
+		}
+	}
+
+	private void changed(Path path) {
+		if (trees.contains(path.getParent()) && Files.isDirectory(path)) {
+			try {
+				// files may have been written before the directory was registered
+				for (Path file : registerTree(path, false)) {
+					debounce(file);
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to watch {}: {}", path, e.getMessage());
+			}
+		} else if (files.contains(path) || trees.contains(path.getParent()) && isSource(path)) {
+			debounce(path);
+		}
+	}
+
+	private void debounce(Path file) {
+		pending.compute(file, (f, previous) -> {
+			if (previous != null) {
+				previous.cancel(false);
+			}
+			return debouncer.schedule(() -> settled(f), DEBOUNCE, TimeUnit.MILLISECONDS);
+		});
+	}
+
+	private void settled(Path file) {
+		pending.remove(file);
+		if (!Files.isRegularFile(file)) {
+			// deleted, or renamed away as part of a save
+			return;
+		}
+		String stamp = stamp(file);
+		if (!stamp.equals(lastSeen.put(file, stamp))) {
+			onChange.accept(file);
+		}
+	}
+
+	// the .mp files found in the tree; known ones are only reported once they change
+	private List<Path> registerTree(Path root, boolean known) throws IOException {
+		List<Path> sources = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				if (Files.isDirectory(path)) {
+					trees.add(path);
+					register(path);
+				} else if (isSource(path)) {
+					sources.add(path);
+					if (known) {
+						lastSeen.put(path, stamp(path));
+					}
+				}
+			}
+		}
+		return sources;
+	}
+
+	private void register(Path directory) throws IOException {
+		WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, directory);
+	}
+
+	private static boolean isSource(Path path) {
+		return path.getFileName().toString().endsWith(".mp") && Files.isRegularFile(path);
+	}
+
+	private static String stamp(Path file) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			FileTime modified = attributes.lastModifiedTime();
+			return modified.toMillis() + "/" + attributes.size();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+}
@@ -0,0 +1,15 @@
+public class GhostscriptBackend extends EpsRasterBackend {
+	private final String binary = System.getProperty("os.name").toLowerCase().indexOf("win") != -1 ? "gsWin32" : "gs";
+
+	@Override
+	public String getName() {
+		return binary;
+	}
+
+	@Override
+	protected String[] getRasterizerCommand(String input, String output, RenderSettings settings) {
+		int alphaBits = settings.isAntialiasing() ? 4 : 1;
+		return new String[] { binary, "-dBATCH", "-dNOPAUSE", "-dQUIET", "-dEPSCrop", "-dEPSFitPage", "-dGraphicsAlphaBits=" + alphaBits, "-dTextAlphaBits=" + alphaBits, "-r" + settings.getResolution(),
+			"-sDEVICE=pngalpha", "-sOutputFile=" + output, input };
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps the .mpx files which mpost gets from makempx/LaTeX for btex ... etex labels. mpost only
+// runs makempx when <job>.mpx is missing or older than <job>.mp, so restoring a matching file
+// before compiling skips the whole TeX run.
+public class LabelCache {
+	private static final Logger logger = LoggerFactory.getLogger(LabelCache.class);
+
+	private final Path directory;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public LabelCache(Path directory) throws IOException {
+		this.directory = Files.createDirectories(directory);
+	}
+
+	// the verbatimtex preamble followed by the labels in order of appearance (that's the order
+	// in which mpost reads them back from the .mpx file), null if there are no labels
+	public static String key(String source) {
+		StringBuilder preamble = new StringBuilder();
+		StringBuilder labels = new StringBuilder();
+		StringBuilder[] current = { null };
+		EditorState state = EditorState.NORMAL;
+		int lineStart = 0;
+		while (lineStart < source.length()) {
+			int lineEnd = source.indexOf('\n', lineStart) + 1;
+			if (lineEnd == 0) {
+				lineEnd = source.length();
+			}
+			String line = source.substring(lineStart, lineEnd);
+			state = MetapostLexer.lexLine(line, state, (start, length, style) -> {
+				String token = line.substring(start, start + length);
+				if (style == FontStyling.KEYWORD && token.equals("verbatimtex")) {
+					current[0] = preamble;
+				} else if (style == FontStyling.KEYWORD && token.equals("btex")) {
+					current[0] = labels;
+				} else if (style == FontStyling.KEYWORD && token.equals("etex") && current[0] != null) {
+					current[0].append('\0');
+					current[0] = null;
+				} else if (current[0] != null) {
+					current[0].append(token);
+				}
+			});
+			lineStart = lineEnd;
+		}
+		if (labels.length() == 0) {
+			return null;
+		}
+		return RenderCache.hash(preamble + "\0\0" + labels);
+	}
+
+	// copies the cached labels next to the source file, returns false if there aren't any
+	public boolean restore(String key, Path sourceFile) throws IOException {
+		Path cached = directory.resolve(key + ".mpx");
+		if (!Files.exists(cached)) {
+			misses.incrementAndGet();
+			return false;
+		}
+		Path mpxFile = mpxFileOf(sourceFile);
+		Files.copy(cached, mpxFile, StandardCopyOption.REPLACE_EXISTING);
+		Files.setLastModifiedTime(mpxFile, FileTime.fromMillis(Files.getLastModifiedTime(sourceFile).toMillis() + 1000));
+		hits.incrementAndGet();
+		logger.debug("Labels restored from cache ({})", this);
+		return true;
+	}
+
+	public void store(String key, Path sourceFile) {
+		Path mpxFile = mpxFileOf(sourceFile);
+		if (!Files.exists(mpxFile)) {
+			return;
+		}
+		try {
+			Path temp = Files.createTempFile(directory, key, ".tmp");
+			Files.copy(mpxFile, temp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp, directory.resolve(key + ".mpx"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Unable to cache labels: {}", e.getMessage());
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("label hits: %d, misses: %d, hit rate: %.0f%%", hits.get(), misses.get(), getHitRate() * 100);
+	}
+
+	private static Path mpxFileOf(Path sourceFile) {
+		String fileName = sourceFile.getFileName().toString();
+		return sourceFile.resolveSibling(fileName.substring(0, fileName.lastIndexOf('.')) + ".mpx");
+	}
+}
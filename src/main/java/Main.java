@@ -1,6 +1,45 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
 
 	public static void main(String args[]) {
-		new ApplicationFrame().setVisible(true);
+		if (args.length > 0 && args[0].equals("--batch")) {
+			System.setProperty("java.awt.headless", "true");
+			System.exit(BatchRenderer.run(Arrays.asList(args).subList(1, args.length)));
+		}
+		if (args.length > 0 && args[0].equals("--export")) {
+			System.setProperty("java.awt.headless", "true");
+			System.exit(ExportPipeline.run(Arrays.asList(args).subList(1, args.length)));
+		}
+		if (args.length > 0 && args[0].equals("--daemon")) {
+			System.setProperty("java.awt.headless", "true");
+			int exitCode = RenderDaemon.run(Arrays.asList(args).subList(1, args.length));
+			if (exitCode != 0) {
+				System.exit(exitCode);
+			}
+			// serving until killed
+			return;
+		}
+		// [--connect [host:]port] [file.mp...] [--watch <dir|file.mp>...]
+		Renderer daemon = null;
+		List<Path> opened = new ArrayList<>();
+		List<Path> watched = new ArrayList<>();
+		boolean watching = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--connect") && i + 1 < args.length) {
+				daemon = new RenderClient(args[++i]);
+			} else if (args[i].equals("--watch")) {
+				watching = true;
+			} else if (watching) {
+				watched.add(Paths.get(args[i]));
+			} else {
+				opened.add(Paths.get(args[i]));
+			}
+		}
+		new ApplicationFrame(daemon, opened, watched).setVisible(true);
 	}
 }
@@ -0,0 +1,131 @@
+import java.util.Set;
+
+// Tokenizes one line at a time. The only state carried over a line boundary is whether
+// the line starts inside TeX material (btex/verbatimtex ... etex), reported as QUOTED;
+// strings and comments never span lines in MetaPost.
+public final class MetapostLexer {
+	public static final Set<String> KEYWORDS = Set.of("beginfig", "begingroup", "btex", "cycle", "dashed", "def", "dir", "draw", "drawarrow", "drawdblarrow", "else", "elseif", "etex", "end",
+		"enddef", "endfig", "endfor", "endgroup", "evenly", "exitif", "exitunless", "fi", "fill", "filldraw", "for", "forever", "forsuffixes", "fullcircle", "if", "label", "pencircle", "pickup",
+		"reflectedabout", "reverse", "rotated", "rotatedaround", "save", "scaled", "shifted", "step", "transformed", "undraw", "unfill", "unfilldraw", "unitsquare", "until", "upto", "vardef",
+		"verbatimtex", "withcolor", "withdots", "withpen", "xscaled", "yscaled");
+	public static final Set<String> DATATYPES = Set.of("boolean", "cmykcolor", "color", "numeric", "pair", "path", "pen", "picture", "rgbcolor", "string", "transform");
+
+	public interface TokenSink {
+		void token(int start, int length, FontStyling style);
+	}
+
+	private MetapostLexer() {
+	}
+
+	public static boolean isKeyword(CharSequence word) {
+		return KEYWORDS.contains(word.toString());
+	}
+
+	public static boolean isDatatype(CharSequence word) {
+		return DATATYPES.contains(word.toString());
+	}
+
+	// lexes a single line (including its trailing newline, if any) and returns the state
+	// at the start of the next one
+	public static EditorState lexLine(CharSequence line, EditorState state, TokenSink sink) {
+		int length = line.length();
+		int pos = 0;
+		if (state == EditorState.QUOTED) {
+			pos = skipTex(line, 0, sink);
+			if (pos < 0) {
+				return EditorState.QUOTED;
+			}
+		}
+		while (pos < length) {
+			char c = line.charAt(pos);
+			int end = pos + 1;
+			if (c == '%') {
+				sink.token(pos, length - pos, FontStyling.COMMENT);
+				return EditorState.NORMAL;
+			} else if (c == '"') {
+				while (end < length && line.charAt(end) != '"' && line.charAt(end) != '\n') {
+					end++;
+				}
+				if (end < length && line.charAt(end) == '"') {
+					end++;
+				}
+				sink.token(pos, end - pos, FontStyling.QUOTED);
+			} else if (isNumberStart(line, pos)) {
+				while (end < length && (Character.isDigit(line.charAt(end)) || line.charAt(end) == '.' && end + 1 < length && Character.isDigit(line.charAt(end + 1)))) {
+					end++;
+				}
+				sink.token(pos, end - pos, FontStyling.DIGITS);
+			} else if (Character.isLetter(c)) {
+				while (end < length && (Character.isLetter(line.charAt(end)) || line.charAt(end) == '_')) {
+					end++;
+				}
+				CharSequence word = line.subSequence(pos, end);
+				if (isKeyword(word)) {
+					sink.token(pos, end - pos, FontStyling.KEYWORD);
+					if (isTexStart(word)) {
+						end = skipTex(line, end, sink);
+						if (end < 0) {
+							return EditorState.QUOTED;
+						}
+					}
+				} else {
+					sink.token(pos, end - pos, isDatatype(word) ? FontStyling.DATATYPE : FontStyling.NORMAL);
+				}
+			} else {
+				while (end < length && !isTokenStart(line, end)) {
+					end++;
+				}
+				sink.token(pos, end - pos, FontStyling.NORMAL);
+			}
+			pos = end;
+		}
+		return EditorState.NORMAL;
+	}
+
+	private static boolean isTexStart(CharSequence word) {
+		return "btex".contentEquals(word) || "verbatimtex".contentEquals(word);
+	}
+
+	// emits TeX material up to and including the closing etex; returns the position after it
+	// or -1 if the material continues on the next line
+	private static int skipTex(CharSequence line, int from, TokenSink sink) {
+		int etex = indexOfWord(line, "etex", from);
+		if (etex < 0) {
+			if (from < line.length()) {
+				sink.token(from, line.length() - from, FontStyling.QUOTED);
+			}
+			return -1;
+		}
+		if (etex > from) {
+			sink.token(from, etex - from, FontStyling.QUOTED);
+		}
+		sink.token(etex, 4, FontStyling.KEYWORD);
+		return etex + 4;
+	}
+
+	private static int indexOfWord(CharSequence line, String word, int from) {
+		int last = line.length() - word.length();
+		for (int i = from; i <= last; i++) {
+			if ((i == 0 || !Character.isLetter(line.charAt(i - 1))) && (i == last || !Character.isLetter(line.charAt(i + word.length())))) {
+				int j = 0;
+				while (j < word.length() && line.charAt(i + j) == word.charAt(j)) {
+					j++;
+				}
+				if (j == word.length()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isNumberStart(CharSequence line, int pos) {
+		char c = line.charAt(pos);
+		return Character.isDigit(c) || c == '.' && pos + 1 < line.length() && Character.isDigit(line.charAt(pos + 1));
+	}
+
+	private static boolean isTokenStart(CharSequence line, int pos) {
+		char c = line.charAt(pos);
+		return c == '%' || c == '"' || Character.isLetter(c) || isNumberStart(line, pos);
+	}
+}
@@ -1,103 +1,321 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MetapostService {
+public class MetapostService implements Renderer {
 	private static final Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+	private static final long MEMORY_CACHE_BUDGET = 64L * 1024 * 1024;
+	private static final long DISK_CACHE_BUDGET = 256L * 1024 * 1024;
 
-	public byte[] renderMetapostToPng(Path metapostInputFile) throws IOException {
-		if (!Files.exists(metapostInputFile)) {
-			throw new FileNotFoundException("Can't find file: " + metapostInputFile);
+	// PNG bytes only, decoded images are bounded by the render cache
+	private static final long FIGURE_CACHE_BUDGET = 16L * 1024 * 1024;
+	private static final String JOB_NAME = "job";
+	private static final Duration METAPOST_TIMEOUT = Processes.timeout("mpost", 30);
+	// a probe runs mpost and every rasterizer, previews fail right away until it's time for the next one
+	private static final long PROBE_RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+
+	private final RenderCache renderCache;
+	private final ScratchSpace scratchSpace;
+	private final LabelCache labelCache;
+	// PNGs of figures keyed by the hashes of the preamble and their own block, so a changed
+	// preamble invalidates all of them; least recently used first
+	private final Map<String, byte[]> figureCache = new LinkedHashMap<>(16, 0.75f, true);
+	private long figureCacheSize;
+	private final RasterizerProbe rasterizerProbe = new RasterizerProbe();
+	private volatile CompletableFuture<OutputBackend> outputBackend;
+	private volatile long failedProbeTime = System.nanoTime() - PROBE_RETRY_INTERVAL;
+	private final ExecutorService conversionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+		Thread thread = new Thread(runnable, "metapost-conversion");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public MetapostService(Path cacheDirectory) {
+		renderCache = new RenderCache(cacheDirectory, MEMORY_CACHE_BUDGET, DISK_CACHE_BUDGET);
+		try {
+			scratchSpace = new ScratchSpace();
+			labelCache = new LabelCache(scratchSpace.getSessionDirectory().resolve("labels"));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to create a session directory", e);
 		}
-		Path tempFile = Files.copy(metapostInputFile, Files.createTempFile(null, ".mp"), StandardCopyOption.REPLACE_EXISTING);
-		String tempFileBaseName = FilenameUtils.getBaseName(tempFile.getFileName().toString());
-		Path workingDir = tempFile.getParent();
-		Path compilerOutputFile = workingDir.resolve(tempFileBaseName + ".1");
-		Path epsFile = workingDir.resolve(tempFileBaseName + ".eps");
+		outputBackend = probeOutputBackend();
+	}
+
+	public RenderResult render(CharSequence source, RenderSettings settings) throws IOException {
+		return render(source, settings, new RenderTimings());
+	}
 
-		Files.deleteIfExists(compilerOutputFile);
-		Files.deleteIfExists(epsFile);
+	@Override
+	public RenderResult render(CharSequence snapshot, RenderSettings settings, RenderTimings timings) throws IOException {
+		String source = snapshot.toString();
+		long start = System.nanoTime();
+		String key = RenderCache.key(source, settings);
+		RenderResult cached = renderCache.get(key);
+		timings.add("cache", System.nanoTime() - start);
+		if (cached != null) {
+			logger.debug("Preview served from cache ({})", renderCache);
+			return cached.withTimings(timings);
+		}
+
+		// half-typed documents fail quickly, without launching mpost
+		start = System.nanoTime();
+		List<Diagnostic> problems = PreflightValidator.validate(source);
+		timings.add("preflight", System.nanoTime() - start);
+		if (!problems.isEmpty()) {
+			throw new CompilationException(problems);
+		}
+		return renderCache.put(key, renderChangedFigures(source, settings, timings));
+	}
+
+	// recompiles only the figures whose block changed since they were last rendered with the same
+	// preamble; documents which can't be split into figures, e.g. because a figure sets variables
+	// another one may read, are compiled as a whole
+	private RenderResult renderChangedFigures(String source, RenderSettings settings, RenderTimings timings) throws IOException {
+		MetapostSource document = MetapostSource.parse(source);
+		if (!document.isSplittable()) {
+			return compile(source, settings, timings);
+		}
+		String preambleKey = RenderCache.key(document.getPreamble(), settings);
+		SortedMap<Integer, PreviewImage> figures = new TreeMap<>();
+		List<MetapostSource.FigureBlock> changedFigures = new ArrayList<>();
+		synchronized (figureCache) {
+			for (MetapostSource.FigureBlock figure : document.getFigures()) {
+				byte[] png = figureCache.get(RenderCache.key(preambleKey + figure.getText(), settings));
+				if (png != null) {
+					figures.put(figure.getNumber(), new PreviewImage(png));
+				} else {
+					changedFigures.add(figure);
+				}
+			}
+		}
+		logger.debug("Compiling {} of {} figures", changedFigures.size(), document.getFigures().size());
+		if (changedFigures.isEmpty()) {
+			return new RenderResult(figures, timings);
+		}
 
+		RenderResult compiled;
 		try {
-			String[] metapostCommand = { "mpost", "-interaction=nonstopmode", tempFile.getFileName().toString(), "end" };
-			Process metapostProcess = Runtime.getRuntime().exec(metapostCommand, null, workingDir.toFile());
-			metapostProcess.waitFor();
-			logProcessOutput(metapostProcess, metapostCommand);
-			if (metapostProcess.exitValue() != 0) {
-				throw new IOException("Compilation failed. Metapost returned code " + metapostProcess.exitValue());
-			} else if (!Files.exists(compilerOutputFile)) {
-				throw new IOException("Output file " + compilerOutputFile + " is missing");
+			compiled = compile(document.synthesize(changedFigures), settings, timings);
+		} catch (CompilationException e) {
+			List<Diagnostic> diagnostics = new ArrayList<>();
+			for (Diagnostic diagnostic : e.getDiagnostics()) {
+				int line = diagnostic.getLine() > 0 ? document.originalLine(changedFigures, diagnostic.getLine()) : 0;
+				diagnostics.add(new Diagnostic(line, diagnostic.getMessage(), diagnostic.getContext()));
+			}
+			throw new CompilationException(diagnostics);
+		}
+		synchronized (figureCache) {
+			for (MetapostSource.FigureBlock figure : changedFigures) {
+				PreviewImage image = compiled.getFigures().get(figure.getNumber());
+				if (image != null) {
+					figures.put(figure.getNumber(), image);
+					byte[] previous = figureCache.put(RenderCache.key(preambleKey + figure.getText(), settings), image.getPng());
+					figureCacheSize += image.getPng().length - (previous != null ? previous.length : 0);
+				}
+			}
+			Iterator<byte[]> eldest = figureCache.values().iterator();
+			while (figureCacheSize > FIGURE_CACHE_BUDGET && eldest.hasNext()) {
+				figureCacheSize -= eldest.next().length;
+				eldest.remove();
 			}
-			Files.move(compilerOutputFile, epsFile, StandardCopyOption.REPLACE_EXISTING);
-			Path pngFile = convertEpsToPng(epsFile);
-			return Files.readAllBytes(pngFile);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
 		}
+		return new RenderResult(figures, timings);
 	}
 
-	private Path convertEpsToPng(Path epsFile) throws IOException, InterruptedException {
-		String targetFileName = FilenameUtils.getBaseName(epsFile.getFileName().toString()) + ".png";
-		Path workingDirectory = epsFile.getParent();
-		Path outputFile = workingDirectory.resolve(targetFileName);
-		Files.deleteIfExists(outputFile);
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	public LabelCache getLabelCache() {
+		return labelCache;
+	}
 
-		String[] convertCommand = {"convert", epsFile.getFileName().toString(), targetFileName};
-		Process convertProcess = Runtime.getRuntime().exec(convertCommand, null, workingDirectory.toFile());
-		convertProcess.waitFor();
-		logProcessOutput(convertProcess, convertCommand);
+	@Override
+	public String toString() {
+		return renderCache + "\n" + labelCache;
+	}
+
+	// compiles the whole source, bypassing all caches except the label cache
+	public RenderResult renderMetapostToPng(String source, RenderSettings settings) throws IOException {
+		return compile(source, settings, new RenderTimings());
+	}
 
-		// ghostscript
-		if (!Files.exists(outputFile)) {
-			String[] ghostscriptCommand = getGhostscriptCommand(epsFile.getFileName().toString(), targetFileName);
-			Process ghostscriptProcess = Runtime.getRuntime().exec(ghostscriptCommand, null, workingDirectory.toFile());
-			ghostscriptProcess.waitFor();
-			logProcessOutput(ghostscriptProcess, ghostscriptCommand);
+	// every render gets a directory of its own, makempx and friends use fixed file names
+	private RenderResult compile(String source, RenderSettings settings, RenderTimings timings) throws IOException {
+		long start = System.nanoTime();
+		Path workingDir = scratchSpace.acquire();
+		Path tempFile;
+		try {
+			tempFile = Files.writeString(workingDir.resolve(JOB_NAME + ".mp"), source);
+		} catch (IOException e) {
+			scratchSpace.release(workingDir);
+			throw e;
 		}
-		if (!Files.exists(outputFile)) {
-			throw new IOException("Unable to convert eps to png.");
+		timings.add("write", System.nanoTime() - start);
+
+		start = System.nanoTime();
+		String labelKey = LabelCache.key(source);
+		boolean labelsCached = labelKey != null && labelCache.restore(labelKey, tempFile);
+		timings.add("labels", System.nanoTime() - start);
+
+		try {
+			for (int attempt = 0;; attempt++) {
+				OutputBackend backend = getOutputBackend();
+				for (Path staleOutput : findFigureFiles(workingDir, JOB_NAME).values()) {
+					Files.delete(staleOutput);
+				}
+				start = System.nanoTime();
+				// mpost is stopped as soon as it reports an error
+				TranscriptParser transcript = new TranscriptParser();
+				int exitCode = Processes.run(getMetapostCommand(backend, settings, tempFile.getFileName().toString()), workingDir, METAPOST_TIMEOUT, transcript).getExitCode();
+				timings.add("mpost", System.nanoTime() - start);
+				SortedMap<Integer, Path> compilerOutputFiles = findFigureFiles(workingDir, JOB_NAME);
+				if (transcript.getDiagnostic() != null) {
+					throw new CompilationException(List.of(transcript.getDiagnostic()));
+				} else if (exitCode != 0) {
+					throw new IOException("Compilation failed. Metapost returned code " + exitCode);
+				} else if (compilerOutputFiles.isEmpty()) {
+					throw new IOException("Metapost produced no figures, is there a beginfig/endfig block?");
+				}
+				if (labelKey != null && !labelsCached) {
+					labelCache.store(labelKey, tempFile);
+					labelsCached = true;
+				}
+				try {
+					return new RenderResult(convertFigures(backend, compilerOutputFiles, settings, timings), timings);
+				} catch (RenderTimeoutException e) {
+					// the figure is too much for it, not a broken rasterizer
+					throw e;
+				} catch (IOException e) {
+					// the rasterizer stopped working, find out what still works and try once more
+					invalidateOutputBackend(backend);
+					if (attempt > 0) {
+						throw e;
+					}
+					logger.warn("{}, probing output backends again", e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Rendering of " + tempFile + " cancelled");
+		} finally {
+			scratchSpace.release(workingDir);
+		}
+	}
+
+	public OutputBackend getOutputBackend() throws IOException, InterruptedException {
+		OutputBackend backend;
+		try {
+			backend = outputBackend.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		if (backend == null) {
+			if (System.nanoTime() - failedProbeTime > PROBE_RETRY_INTERVAL) {
+				invalidateOutputBackend(null);
+			}
+			throw new IOException("No working output backend found. Is mpost on the PATH, together with convert or gs?");
 		}
-		return outputFile;
+		return backend;
 	}
 
-	private String[] getGhostscriptCommand(String input, String output) {
-		String binary = System.getProperty("os.name").toLowerCase().indexOf("win") != -1 ? "gsWin32" : "gs";
-		return new String[] { binary, "-dBATCH", "-dNOPAUSE", "-dQUIET", "-dEPSCrop", "-dEPSFitPage", "-dGraphicsAlphaBits=4", "-dTextAlphaBits=4", "-sDEVICE=pngalpha", "-sOutputFile=" + output, input };
+	static String[] getMetapostCommand(OutputBackend backend, RenderSettings settings, String inputFileName) {
+		List<String> command = new ArrayList<>();
+		command.add("mpost");
+		command.add("-interaction=nonstopmode");
+		command.addAll(backend.getMetapostOptions(settings));
+		command.add(inputFileName);
+		command.add("end");
+		return command.toArray(new String[0]);
 	}
 
-	private static void logProcessOutput(Process process, String[] args) {
-		if (process.exitValue() == 0 && !logger.isDebugEnabled()) {
-			return;
+	// one conversion per figure, fanned out over the conversion pool; the time until all of them
+	// are done goes to a stage named after the backend
+	private SortedMap<Integer, PreviewImage> convertFigures(OutputBackend backend, SortedMap<Integer, Path> compilerOutputFiles, RenderSettings settings, RenderTimings timings)
+		throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		Map<Integer, Future<Path>> conversions = new TreeMap<>();
+		for (Map.Entry<Integer, Path> outputFile : compilerOutputFiles.entrySet()) {
+			conversions.put(outputFile.getKey(), conversionPool.submit(() -> backend.toPng(outputFile.getValue(), settings)));
 		}
+		SortedMap<Integer, Path> pngFiles = new TreeMap<>();
+		try {
+			for (Map.Entry<Integer, Future<Path>> conversion : conversions.entrySet()) {
+				pngFiles.put(conversion.getKey(), conversion.getValue().get());
+			}
+		} catch (ExecutionException e) {
+			timings.add(backend.getName() + " (failed)", System.nanoTime() - start);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			conversions.values().forEach(conversion -> conversion.cancel(true));
+		}
+		timings.add(backend.getName(), System.nanoTime() - start);
+
+		start = System.nanoTime();
+		SortedMap<Integer, PreviewImage> figures = new TreeMap<>();
+		for (Map.Entry<Integer, Path> pngFile : pngFiles.entrySet()) {
+			figures.put(pngFile.getKey(), new PreviewImage(Files.readAllBytes(pngFile.getValue())));
+		}
+		timings.add("read", System.nanoTime() - start);
+		return figures;
+	}
 
-		String command = String.join(" ", args);
-		StringBuilder sb = new StringBuilder("Exit code: [").append(process.exitValue()).append("], command: [").append(command).append("]");
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append('\n').append(line);
+	static SortedMap<Integer, Path> findFigureFiles(Path directory, String baseName) throws IOException {
+		SortedMap<Integer, Path> figureFiles = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, baseName + ".*")) {
+			for (Path file : files) {
+				String extension = FilenameUtils.getExtension(file.getFileName().toString());
+				if (!extension.isEmpty() && extension.chars().allMatch(Character::isDigit)) {
+					figureFiles.put(Integer.valueOf(extension), file);
+				}
 			}
-		} catch (IOException e) {
-			logger.error(e.getMessage(), e);
 		}
-		sb.append("\nExit code: ").append(process.exitValue());
+		return figureFiles;
+	}
 
-		if (process.exitValue() != 0) {
-			logger.error(sb.toString());
-		} else {
-			logger.debug(sb.toString());
+	private synchronized void invalidateOutputBackend(OutputBackend failedBackend) {
+		if (outputBackend.isDone() && outputBackend.getNow(null) == failedBackend) {
+			outputBackend = probeOutputBackend();
 		}
 	}
+
+	private CompletableFuture<OutputBackend> probeOutputBackend() {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				OutputBackend backend = rasterizerProbe.probe();
+				if (backend == null) {
+					failedProbeTime = System.nanoTime();
+				}
+				return backend;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		});
+	}
 }
@@ -0,0 +1,277 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Splits a document into the preamble and one block per beginfig(n) ... endfig, so that figures
+// can be compiled separately. Documents which don't follow that layout (code between or after
+// figures, figure numbers which aren't literals, several figures on one line...) are reported
+// as not splittable and have to be compiled as a whole. So are documents with a figure which
+// reads a variable or macro an earlier figure left behind, since beginfig doesn't make variables
+// local; x, y and the current picture and pen are reset by beginfig.
+public class MetapostSource {
+	private static final Set<String> DEFINITIONS = Set.of("def", "vardef", "primarydef", "secondarydef", "tertiarydef", "let", "newinternal");
+	private static final Set<String> FIGURE_LOCALS = Set.of("x", "y", "z", "currentpicture", "currentpen");
+	private final String preamble;
+	private final List<FigureBlock> figures;
+	private final boolean splittable;
+
+	public static class FigureBlock {
+		private final int number;
+		private final String text;
+		private final int firstLine;
+
+		FigureBlock(int number, String text, int firstLine) {
+			this.number = number;
+			this.text = text;
+			this.firstLine = firstLine;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		// in the whole document, numbered from 1
+		public int getFirstLine() {
+			return firstLine;
+		}
+
+		private int getLineCount() {
+			return (int) text.chars().filter(c -> c == '\n').count();
+		}
+	}
+
+	private MetapostSource(String preamble, List<FigureBlock> figures, boolean splittable) {
+		this.preamble = preamble;
+		this.figures = Collections.unmodifiableList(figures);
+		this.splittable = splittable;
+	}
+
+	public String getPreamble() {
+		return preamble;
+	}
+
+	public List<FigureBlock> getFigures() {
+		return figures;
+	}
+
+	public boolean isSplittable() {
+		return splittable;
+	}
+
+	// a complete document with the preamble and just the given figures
+	public String synthesize(List<FigureBlock> selectedFigures) {
+		StringBuilder sb = new StringBuilder(preamble);
+		for (FigureBlock figure : selectedFigures) {
+			sb.append(figure.getText());
+		}
+		return sb.append("end\n").toString();
+	}
+
+	// maps a line of the synthesized document back to the whole document
+	public int originalLine(List<FigureBlock> selectedFigures, int synthesizedLine) {
+		int line = (int) preamble.chars().filter(c -> c == '\n').count();
+		if (synthesizedLine <= line) {
+			return synthesizedLine;
+		}
+		for (FigureBlock figure : selectedFigures) {
+			if (synthesizedLine <= line + figure.getLineCount()) {
+				return figure.getFirstLine() + synthesizedLine - line - 1;
+			}
+			line += figure.getLineCount();
+		}
+		return synthesizedLine;
+	}
+
+	public static MetapostSource parse(String source) {
+		StringBuilder preamble = new StringBuilder();
+		List<FigureBlock> figures = new ArrayList<>();
+		Set<Integer> numbers = new HashSet<>();
+		StringBuilder block = null;
+		List<String> blockTokens = new ArrayList<>();
+		Set<String> leftBehind = new HashSet<>();
+		int blockNumber = 0;
+		int blockLine = 0;
+		int lineNumber = 0;
+		EditorState state = EditorState.NORMAL;
+
+		int lineStart = 0;
+		while (lineStart < source.length()) {
+			int lineEnd = source.indexOf('\n', lineStart) + 1;
+			if (lineEnd == 0) {
+				lineEnd = source.length();
+			}
+			String line = source.substring(lineStart, lineEnd);
+			lineStart = lineEnd;
+			lineNumber++;
+
+			List<String> tokens = new ArrayList<>();
+			EditorState lineState = state;
+			state = MetapostLexer.lexLine(line, state, (start, length, style) -> {
+				String token = line.substring(start, start + length).trim();
+				if (style != FontStyling.COMMENT && !token.isEmpty()) {
+					tokens.add(style == FontStyling.QUOTED ? "\"" : token);
+				}
+			});
+			int beginfig = tokens.indexOf("beginfig");
+			int endfig = tokens.indexOf("endfig");
+			if (lineState != EditorState.NORMAL && (beginfig >= 0 || endfig >= 0)) {
+				return notSplittable(source);
+			}
+
+			if (block == null) {
+				if (beginfig > 0 || beginfig < 0 && endfig >= 0) {
+					return notSplittable(source);
+				} else if (beginfig < 0) {
+					if (figures.isEmpty()) {
+						preamble.append(line);
+					} else if (!isTrailer(tokens)) {
+						return notSplittable(source);
+					}
+					continue;
+				}
+				blockNumber = parseFigureNumber(line);
+				if (blockNumber < 0 || !numbers.add(blockNumber)) {
+					return notSplittable(source);
+				}
+				block = new StringBuilder();
+				blockTokens.clear();
+				blockLine = lineNumber;
+			} else if (beginfig >= 0) {
+				return notSplittable(source);
+			}
+
+			block.append(line);
+			blockTokens.addAll(tokens);
+			if (endfig >= 0) {
+				if (endfig != tokens.size() - 1 && !(endfig == tokens.size() - 2 && tokens.get(endfig + 1).equals(";"))) {
+					return notSplittable(source);
+				}
+				if (readsLeftovers(blockTokens, leftBehind)) {
+					return notSplittable(source);
+				}
+				figures.add(new FigureBlock(blockNumber, block.toString().endsWith("\n") ? block.toString() : block + "\n", blockLine));
+				block = null;
+			}
+		}
+		if (block != null || figures.isEmpty()) {
+			return notSplittable(source);
+		}
+		return new MetapostSource(preamble.toString(), figures, true);
+	}
+
+	private static MetapostSource notSplittable(String source) {
+		return new MetapostSource(source, List.of(), false);
+	}
+
+	// whether a figure reads a name one of the figures before it left behind, then adds the names
+	// it leaves behind itself; errs on the side of compiling the whole document
+	private static boolean readsLeftovers(List<String> tokens, Set<String> leftBehind) {
+		List<List<String>> statements = new ArrayList<>();
+		List<String> statement = new ArrayList<>();
+		for (String token : tokens) {
+			statement.add(token);
+			if (endsStatement(token)) {
+				statements.add(statement);
+				statement = new ArrayList<>();
+			}
+		}
+		statements.add(statement);
+		Set<String> saved = new HashSet<>();
+		for (List<String> words : statements) {
+			if (!words.isEmpty() && words.get(0).equals("save")) {
+				saved.addAll(names(words));
+			}
+		}
+		// declared, assigned or saved by this figure, it doesn't read the earlier values of those
+		Set<String> own = new HashSet<>(saved);
+		Set<String> leaves = new HashSet<>();
+		for (List<String> words : statements) {
+			if (words.isEmpty() || words.get(0).equals("save")) {
+				continue;
+			}
+			String first = words.get(0);
+			List<String> names = names(words);
+			List<String> read = names;
+			List<String> written = List.of();
+			if (DEFINITIONS.contains(first) || MetapostLexer.isDatatype(first)) {
+				// what follows a definition's name may be its body, which reads
+				written = names;
+				read = DEFINITIONS.contains(first) && !names.isEmpty() ? names.subList(1, names.size()) : List.of();
+			} else if (!MetapostLexer.isKeyword(first) && !first.equals("interim") && words.stream().anyMatch(MetapostSource::isEquation)) {
+				if (words.stream().anyMatch(word -> word.contains(":=")) && !names.isEmpty() && names.get(0).equals(first)) {
+					written = List.of(first);
+					read = names.subList(1, names.size());
+				} else {
+					// an equation makes all of its variables known, and may contradict what's known already
+					written = names;
+				}
+			}
+			for (String name : read) {
+				if (!own.contains(name) && leftBehind.contains(name)) {
+					return true;
+				}
+			}
+			own.addAll(written);
+			for (String name : written) {
+				if (!saved.contains(name)) {
+					leaves.add(name);
+				}
+			}
+		}
+		leftBehind.addAll(leaves);
+		return false;
+	}
+
+	// the variables and macros of a statement, without the ones beginfig resets
+	private static List<String> names(List<String> words) {
+		List<String> names = new ArrayList<>();
+		for (String word : words) {
+			if (Character.isLetter(word.charAt(0)) && !MetapostLexer.isKeyword(word) && !MetapostLexer.isDatatype(word) && !FIGURE_LOCALS.contains(word)) {
+				names.add(word);
+			}
+		}
+		return names;
+	}
+
+	// a semicolon, or the colon after "for ...", "if ..." and "else"
+	private static boolean endsStatement(String token) {
+		for (int i = 0; i < token.length(); i++) {
+			char c = token.charAt(i);
+			if (c == ';' || c == ':' && (i + 1 == token.length() || token.charAt(i + 1) != '=')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// "=" or ":=", as opposed to "<=", ">=" and "<>"
+	private static boolean isEquation(String token) {
+		int equals = token.indexOf('=');
+		return equals >= 0 && (equals == 0 || token.charAt(equals - 1) != '<' && token.charAt(equals - 1) != '>');
+	}
+
+	// after the last figure only "end" (or "bye") and semicolons are allowed
+	private static boolean isTrailer(List<String> tokens) {
+		return tokens.stream().allMatch(token -> token.equals("end") || token.equals("bye") || token.matches(";+"));
+	}
+
+	// the literal number in "beginfig(n)", -1 if it's anything else
+	private static int parseFigureNumber(String line) {
+		int open = line.indexOf('(', line.indexOf("beginfig"));
+		int close = line.indexOf(')', open + 1);
+		if (open < 0 || close < 0 || !line.substring(line.indexOf("beginfig") + "beginfig".length(), open).isBlank()) {
+			return -1;
+		}
+		String number = line.substring(open + 1, close).trim();
+		if (number.isEmpty() || !number.chars().allMatch(Character::isDigit) || number.length() > 4) {
+			return -1;
+		}
+		return Integer.parseInt(number);
+	}
+}
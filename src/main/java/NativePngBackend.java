@@ -0,0 +1,33 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FilenameUtils;
+
+// mpost 1.800+ can write PNG itself, which saves the EPS conversion and its process launches.
+public class NativePngBackend implements OutputBackend {
+
+	@Override
+	public String getName() {
+		return "mpost (png)";
+	}
+
+	@Override
+	public List<String> getMetapostOptions(RenderSettings settings) {
+		String options = "format=rgba antialias=" + (settings.isAntialiasing() ? "good" : "none");
+		// the resolution is set in pixels per PostScript point, outputformatoptions has no key for it
+		String pixelsPerPoint = String.format(Locale.ROOT, "%.6f", settings.getResolution() / 72.0);
+		return List.of("-s", "outputformat=\"png\"", "-s", "outputformatoptions=\"" + options + "\"", "-s", "hppp=" + pixelsPerPoint, "-s", "vppp=" + pixelsPerPoint);
+	}
+
+	@Override
+	public Path toPng(Path compilerOutputFile, RenderSettings settings) throws IOException {
+		String baseName = FilenameUtils.getBaseName(compilerOutputFile.getFileName().toString());
+		String figure = FilenameUtils.getExtension(compilerOutputFile.getFileName().toString());
+		Path pngFile = compilerOutputFile.resolveSibling(baseName + "-" + figure + ".png");
+		return Files.move(compilerOutputFile, pngFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,15 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// Decides what mpost writes and how that output becomes a PNG.
+public interface OutputBackend {
+
+	String getName();
+
+	// extra mpost arguments, placed before the input file name
+	List<String> getMetapostOptions(RenderSettings settings);
+
+	// turns a figure file written by mpost (<job>.<n>) into a PNG file
+	Path toPng(Path compilerOutputFile, RenderSettings settings) throws IOException, InterruptedException;
+}
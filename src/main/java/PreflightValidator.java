@@ -0,0 +1,126 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+// Finds problems which would certainly make mpost fail, so that half-typed documents don't cost
+// a process launch: unterminated strings, TeX material without etex and unbalanced
+// beginfig/begingroup/for/if/def blocks. Macros may open or close blocks on behalf of their
+// callers, so the block checks are skipped for documents which define such macros, use let or
+// input files whose macros can't be seen from here.
+public final class PreflightValidator {
+	private static final Map<String, String> CLOSERS = Map.ofEntries(Map.entry("beginfig", "endfig"), Map.entry("begingroup", "endgroup"), Map.entry("for", "endfor"),
+		Map.entry("forsuffixes", "endfor"), Map.entry("forever", "endfor"), Map.entry("if", "fi"), Map.entry("def", "enddef"), Map.entry("vardef", "enddef"),
+		Map.entry("primarydef", "enddef"), Map.entry("secondarydef", "enddef"), Map.entry("tertiarydef", "enddef"));
+
+	private PreflightValidator() {
+	}
+
+	private static class Block {
+		private final String opener;
+		private final int line;
+		// blocks opened and not closed inside a definition
+		private int unbalanced;
+
+		Block(String opener, int line) {
+			this.opener = opener;
+			this.line = line;
+		}
+
+		boolean isDefinition() {
+			return CLOSERS.get(opener).equals("enddef");
+		}
+	}
+
+	// the problems found, empty if mpost may well succeed
+	public static List<Diagnostic> validate(String source) {
+		List<Diagnostic> diagnostics = new ArrayList<>();
+		Deque<Block> blocks = new ArrayDeque<>();
+		Diagnostic[] blockError = { null };
+		boolean[] customBlocks = { false };
+		EditorState state = EditorState.NORMAL;
+		int texStart = 0;
+
+		int lineNumber = 0;
+		int lineStart = 0;
+		while (lineStart < source.length()) {
+			int lineEnd = source.indexOf('\n', lineStart) + 1;
+			if (lineEnd == 0) {
+				lineEnd = source.length();
+			}
+			String line = source.substring(lineStart, lineEnd);
+			int currentLine = ++lineNumber;
+			lineStart = lineEnd;
+
+			EditorState lineState = state;
+			boolean[] inTex = { state == EditorState.QUOTED };
+			state = MetapostLexer.lexLine(line, state, (start, length, style) -> {
+				String token = line.substring(start, start + length);
+				if (style == FontStyling.KEYWORD && (token.equals("btex") || token.equals("verbatimtex") || token.equals("etex"))) {
+					inTex[0] = !token.equals("etex");
+				} else if (style == FontStyling.QUOTED && !inTex[0] && (length == 1 || !token.endsWith("\""))) {
+					diagnostics.add(new Diagnostic(currentLine, "Unterminated string", line.strip()));
+				} else if ((style == FontStyling.KEYWORD || style == FontStyling.NORMAL) && Character.isLetter(token.charAt(0)) && blockError[0] == null) {
+					blockError[0] = checkBlock(token, currentLine, line, blocks, customBlocks);
+				}
+			});
+			if (lineState != EditorState.QUOTED && state == EditorState.QUOTED) {
+				texStart = currentLine;
+			}
+		}
+
+		if (state == EditorState.QUOTED) {
+			diagnostics.add(new Diagnostic(texStart, "TeX material without a closing etex", ""));
+		}
+		if (!customBlocks[0]) {
+			if (blockError[0] != null) {
+				diagnostics.add(blockError[0]);
+			} else if (!blocks.isEmpty() && state != EditorState.QUOTED) {
+				// not when TeX material is left open, it swallows the closers
+				Block unclosed = blocks.peek();
+				diagnostics.add(new Diagnostic(unclosed.line, unclosed.opener + " without " + CLOSERS.get(unclosed.opener), ""));
+			}
+		}
+		diagnostics.sort((a, b) -> Integer.compare(a.getLine(), b.getLine()));
+		return diagnostics;
+	}
+
+	// MetaPost only counts nested definitions while reading a definition, so other blocks may be
+	// left open there; such a macro makes the document's blocks impossible to check
+	private static Diagnostic checkBlock(String word, int lineNumber, String line, Deque<Block> blocks, boolean[] customBlocks) {
+		Block definition = null;
+		for (Block block : blocks) {
+			if (block.isDefinition()) {
+				definition = block;
+				break;
+			}
+		}
+		if (word.equals("let") || word.equals("input")) {
+			customBlocks[0] = true;
+		} else if (CLOSERS.containsKey(word)) {
+			Block block = new Block(word, lineNumber);
+			if (definition == null || block.isDefinition()) {
+				blocks.push(block);
+			} else {
+				definition.unbalanced++;
+			}
+		} else if (CLOSERS.containsValue(word)) {
+			if (definition != null && !word.equals("enddef")) {
+				definition.unbalanced--;
+				return null;
+			}
+			Block block = blocks.poll();
+			if (block == null) {
+				return new Diagnostic(lineNumber, word + " without a matching opening", line.strip());
+			} else if (!CLOSERS.get(block.opener).equals(word)) {
+				return new Diagnostic(lineNumber, word + " doesn't close the " + block.opener + " from line " + block.line, line.strip());
+			} else if (block.isDefinition() && block.unbalanced != 0) {
+				customBlocks[0] = true;
+			}
+		} else if ((word.equals("else") || word.equals("elseif")) && definition == null && blocks.stream().noneMatch(block -> block.opener.equals("if"))) {
+			return new Diagnostic(lineNumber, word + " outside of an if", line.strip());
+		}
+		return null;
+	}
+}
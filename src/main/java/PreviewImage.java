@@ -0,0 +1,54 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+public class PreviewImage {
+	private final byte[] png;
+	private BufferedImage image;
+	private TiledImage tiles;
+
+	public PreviewImage(byte[] png) {
+		this.png = png;
+	}
+
+	public byte[] getPng() {
+		return png;
+	}
+
+	// decoded into the screen's format, so that painting doesn't convert it every time
+	public synchronized BufferedImage getImage() throws IOException {
+		if (image == null) {
+			BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+			if (decoded == null) {
+				throw new IOException("Unable to decode preview image.");
+			}
+			image = TiledImage.toCompatible(decoded);
+		}
+		return image;
+	}
+
+	public synchronized TiledImage getTiles() throws IOException {
+		if (tiles == null) {
+			tiles = new TiledImage(getImage());
+		}
+		return tiles;
+	}
+
+	// encoded size plus the size of the decoded ARGB raster, taken from the IHDR chunk
+	// so that the cache can account for an image before it's decoded
+	public long estimatedSize() {
+		long size = png.length;
+		if (png.length >= 24) {
+			long width = readInt(16) & 0xFFFFFFFFL;
+			long height = readInt(20) & 0xFFFFFFFFL;
+			size += width * height * 4;
+		}
+		return size;
+	}
+
+	private int readInt(int offset) {
+		return (png[offset] & 0xFF) << 24 | (png[offset + 1] & 0xFF) << 16 | (png[offset + 2] & 0xFF) << 8 | png[offset + 3] & 0xFF;
+	}
+}
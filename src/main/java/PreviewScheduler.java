@@ -0,0 +1,144 @@
+import java.util.function.BiConsumer;
+
+import javax.swing.JTextPane;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+
+// Decides when to render a preview, on the EDT. Any change of the editor's document (typing, paste,
+// undo, programmatic edits) restarts a debounce, which waits a bit longer than the user's usual pause
+// between keystrokes and longer still when renders are slow. At most one render runs at a time;
+// edits made while it runs are coalesced into a single follow-up render. Renders which follow edits
+// are drafts; once the editor has been idle for IDLE_DELAY, a successful draft is followed by
+// a full quality render.
+public class PreviewScheduler {
+	private static final int MIN_DELAY = 100;
+	private static final int MAX_DELAY = 2000;
+	// longer gaps are pauses, not typing
+	private static final long MAX_TYPING_GAP = 1000;
+	private static final double SMOOTHING = 0.2;
+	private static final long IDLE_DELAY = 1000;
+
+	private final BiConsumer<RenderSettings, Boolean> preview;
+	private final Timer timer;
+	private final DocumentListener documentListener = new DocumentListener() {
+		@Override
+		public void insertUpdate(DocumentEvent e) {
+			edited();
+		}
+
+		@Override
+		public void removeUpdate(DocumentEvent e) {
+			edited();
+		}
+
+		@Override
+		public void changedUpdate(DocumentEvent e) {
+			// attributes only, e.g. highlighting
+		}
+	};
+
+	// moving averages in milliseconds
+	private double typingGap = 200;
+	private double renderLatency = 300;
+
+	private long lastEdit;
+	private long renderStart;
+	private boolean rendering;
+	private boolean editedWhileRendering;
+	private boolean requested;
+	private RenderSettings nextSettings = RenderSettings.DRAFT;
+	private RenderSettings renderSettings;
+
+	// preview has to start a render with the given settings and report its end with
+	// renderFinished(); it's told whether the user asked for the preview (previewNow)
+	public PreviewScheduler(JTextPane editor, BiConsumer<RenderSettings, Boolean> preview) {
+		this.preview = preview;
+		timer = new Timer(MIN_DELAY, e -> startRender());
+		timer.setRepeats(false);
+
+		editor.getDocument().addDocumentListener(documentListener);
+		editor.addPropertyChangeListener("document", e -> {
+			if (e.getOldValue() != null) {
+				((Document) e.getOldValue()).removeDocumentListener(documentListener);
+			}
+			if (e.getNewValue() != null) {
+				((Document) e.getNewValue()).addDocumentListener(documentListener);
+			}
+		});
+	}
+
+	// renders as soon as the render in flight, if any, is finished
+	public void previewNow() {
+		timer.stop();
+		requested = true;
+		nextSettings = RenderSettings.DEFAULT;
+		if (rendering) {
+			editedWhileRendering = true;
+		} else {
+			startRender();
+		}
+	}
+
+	public void renderFinished(boolean succeeded) {
+		rendering = false;
+		if (renderSettings == RenderSettings.DRAFT) {
+			renderLatency = smooth(renderLatency, System.currentTimeMillis() - renderStart);
+		}
+		// the user has been waiting since the last edit already
+		long sinceEdit = System.currentTimeMillis() - lastEdit;
+		if (editedWhileRendering) {
+			editedWhileRendering = false;
+			schedule((int) Math.max(0, getDelay() - sinceEdit));
+		} else if (succeeded && renderSettings == RenderSettings.DRAFT) {
+			// failures wouldn't go away at full quality
+			nextSettings = RenderSettings.DEFAULT;
+			schedule((int) Math.max(0, IDLE_DELAY - sinceEdit));
+		}
+	}
+
+	public void stop() {
+		timer.stop();
+	}
+
+	// debounce for the next edit in milliseconds
+	public int getDelay() {
+		return (int) Math.max(MIN_DELAY, Math.min(MAX_DELAY, 1.5 * typingGap + 0.5 * renderLatency));
+	}
+
+	private void edited() {
+		long now = System.currentTimeMillis();
+		if (lastEdit > 0 && now - lastEdit < MAX_TYPING_GAP) {
+			typingGap = smooth(typingGap, now - lastEdit);
+		}
+		lastEdit = now;
+		if (!requested) {
+			nextSettings = RenderSettings.DRAFT;
+		}
+		if (rendering) {
+			editedWhileRendering = true;
+		} else {
+			schedule(getDelay());
+		}
+	}
+
+	private void schedule(int delay) {
+		timer.setInitialDelay(delay);
+		timer.restart();
+	}
+
+	private void startRender() {
+		rendering = true;
+		renderStart = System.currentTimeMillis();
+		renderSettings = nextSettings;
+		nextSettings = RenderSettings.DRAFT;
+		boolean wasRequested = requested;
+		requested = false;
+		preview.accept(renderSettings, wasRequested);
+	}
+
+	private static double smooth(double average, double sample) {
+		return average + SMOOTHING * (sample - average);
+	}
+}
@@ -0,0 +1,291 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.JComponent;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+
+// Shows every figure of a document one below the other, zoomed with Ctrl+wheel (around the
+// pointer) and panned by dragging; a double click goes back to 100%. Only the tiles in view are
+// painted, from the pyramid level matching the zoom. Tiles which aren't made yet are made in the
+// background, the figure's thumbnail stands in for them meanwhile.
+public class PreviewViewer extends JComponent implements Scrollable {
+	private static final long serialVersionUID = -6327340409731735585L;
+	private static final int FIGURE_SPACING = 12;
+	private static final double MIN_ZOOM = 1.0 / 32;
+	private static final double MAX_ZOOM = 16;
+	private static final double ZOOM_STEP = 1.25;
+
+	private static final ExecutorService tileMaker = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "preview-tiles");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private List<Map.Entry<Integer, TiledImage>> figures = Collections.emptyList();
+	private double zoom = 1;
+	// screen pixels per image pixel at 100%
+	private double pixelScale = 1;
+	// tiles asked for and not made yet; forgotten when the zoom or the figures change
+	private final Set<List<Object>> requestedTiles = ConcurrentHashMap.newKeySet();
+	private Point dragStart;
+
+	public PreviewViewer() {
+		setOpaque(true);
+		setBackground(Color.WHITE);
+		setForeground(UIManager.getColor("Label.foreground"));
+		setFont(UIManager.getFont("Label.font"));
+
+		MouseAdapter mouse = new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				dragStart = SwingUtilities.convertPoint(PreviewViewer.this, e.getPoint(), getParent());
+			}
+
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				if (dragStart != null && getParent() instanceof JViewport) {
+					JViewport viewport = (JViewport) getParent();
+					Point point = SwingUtilities.convertPoint(PreviewViewer.this, e.getPoint(), viewport);
+					Point position = viewport.getViewPosition();
+					position.translate(dragStart.x - point.x, dragStart.y - point.y);
+					scrollTo(viewport, position);
+					dragStart = point;
+				}
+			}
+
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				dragStart = null;
+			}
+
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2) {
+					setZoom(1, e.getPoint());
+				}
+			}
+
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				if (e.isControlDown()) {
+					setZoom(zoom * Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getPoint());
+				} else {
+					// plain scrolling is up to the scroll pane
+					JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, PreviewViewer.this);
+					if (scrollPane != null) {
+						scrollPane.dispatchEvent(SwingUtilities.convertMouseEvent(PreviewViewer.this, e, scrollPane));
+					}
+				}
+			}
+		};
+		addMouseListener(mouse);
+		addMouseMotionListener(mouse);
+		addMouseWheelListener(mouse);
+	}
+
+	// pixelScale stretches images rendered at a lower resolution to the size of the full ones
+	public void setFigures(SortedMap<Integer, TiledImage> newFigures, double newPixelScale) {
+		figures = new ArrayList<>(newFigures.entrySet());
+		pixelScale = newPixelScale;
+		requestedTiles.clear();
+		revalidate();
+		repaint();
+	}
+
+	public double getZoom() {
+		return zoom;
+	}
+
+	// keeps the point under anchor (in this component's coordinates) where it is
+	public void setZoom(double newZoom, Point anchor) {
+		newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, newZoom));
+		if (newZoom == zoom) {
+			return;
+		}
+		double ratio = newZoom / zoom;
+		zoom = newZoom;
+		requestedTiles.clear();
+		if (getParent() instanceof JViewport) {
+			JViewport viewport = (JViewport) getParent();
+			Point position = viewport.getViewPosition();
+			int anchorX = anchor.x - position.x;
+			int anchorY = anchor.y - position.y;
+			Point newPosition = new Point((int) Math.round(anchor.x * ratio) - anchorX, (int) Math.round(anchor.y * ratio) - anchorY);
+			viewport.setViewSize(getPreferredSize());
+			scrollTo(viewport, newPosition);
+		}
+		revalidate();
+		repaint();
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		int width = 0;
+		int height = FIGURE_SPACING / 2;
+		for (Map.Entry<Integer, TiledImage> figure : figures) {
+			width = Math.max(width, scaled(figure.getValue().getWidth()));
+			height += scaled(figure.getValue().getHeight()) + captionHeight() + FIGURE_SPACING;
+		}
+		return new Dimension(width, height);
+	}
+
+	@Override
+	protected void paintComponent(Graphics graphics) {
+		Graphics2D g = (Graphics2D) graphics.create();
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(getSize());
+		}
+		g.setColor(getBackground());
+		g.fill(clip);
+		if (zoom * pixelScale < 1 || pixelScale > 1) {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		}
+
+		// centered in the viewport when zoomed out, like the labels used to be
+		int contentHeight = getPreferredSize().height;
+		int y = Math.max(0, (getHeight() - contentHeight) / 2) + FIGURE_SPACING / 2;
+		for (Map.Entry<Integer, TiledImage> figure : figures) {
+			TiledImage image = figure.getValue();
+			Rectangle bounds = new Rectangle((getWidth() - scaled(image.getWidth())) / 2, y, scaled(image.getWidth()), scaled(image.getHeight()));
+			if (bounds.intersects(clip)) {
+				paintFigure(g, image, bounds, clip);
+			}
+			y += bounds.height;
+			if (figures.size() > 1) {
+				g.setColor(getForeground());
+				FontMetrics metrics = g.getFontMetrics(getFont());
+				String caption = "Figure " + figure.getKey();
+				g.setFont(getFont());
+				g.drawString(caption, (getWidth() - metrics.stringWidth(caption)) / 2, y + metrics.getAscent());
+			}
+			y += captionHeight() + FIGURE_SPACING;
+		}
+		g.dispose();
+	}
+
+	private void paintFigure(Graphics2D g, TiledImage image, Rectangle bounds, Rectangle clip) {
+		int level = image.levelFor(zoom * pixelScale);
+		double scale = zoom * pixelScale * (1 << level);
+		double tileExtent = TiledImage.TILE_SIZE * scale;
+		Rectangle visible = bounds.intersection(clip);
+		int firstColumn = (int) ((visible.x - bounds.x) / tileExtent);
+		int lastColumn = Math.min((int) ((visible.x + visible.width - 1 - bounds.x) / tileExtent), (image.levelWidth(level) - 1) / TiledImage.TILE_SIZE);
+		int firstRow = (int) ((visible.y - bounds.y) / tileExtent);
+		int lastRow = Math.min((int) ((visible.y + visible.height - 1 - bounds.y) / tileExtent), (image.levelHeight(level) - 1) / TiledImage.TILE_SIZE);
+
+		List<BufferedImage> tiles = new ArrayList<>();
+		boolean complete = true;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				BufferedImage tile = image.getCachedTile(level, column, row);
+				if (tile == null) {
+					complete = false;
+					requestTile(image, level, column, row);
+				}
+				tiles.add(tile);
+			}
+		}
+		if (!complete) {
+			g.drawImage(image.getThumbnail(), bounds.x, bounds.y, bounds.width, bounds.height, null);
+		}
+		int i = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				BufferedImage tile = tiles.get(i++);
+				if (tile != null) {
+					// edges rounded the same way for neighbouring tiles, so that there are no seams
+					int x0 = bounds.x + (int) Math.round(column * tileExtent);
+					int y0 = bounds.y + (int) Math.round(row * tileExtent);
+					int x1 = bounds.x + (int) Math.round((column * TiledImage.TILE_SIZE + tile.getWidth()) * scale);
+					int y1 = bounds.y + (int) Math.round((row * TiledImage.TILE_SIZE + tile.getHeight()) * scale);
+					g.drawImage(tile, x0, y0, x1 - x0, y1 - y0, null);
+				}
+			}
+		}
+	}
+
+	private void requestTile(TiledImage image, int level, int column, int row) {
+		List<Object> key = List.of(image, level, column, row);
+		if (!requestedTiles.add(key)) {
+			return;
+		}
+		tileMaker.execute(() -> {
+			// skipped if the zoom or the figures changed while it was queued
+			if (requestedTiles.contains(key)) {
+				image.getTile(level, column, row);
+				EventQueue.invokeLater(() -> {
+					requestedTiles.remove(key);
+					repaint();
+				});
+			}
+		});
+	}
+
+	private int scaled(int size) {
+		return Math.max(1, (int) Math.round(size * pixelScale * zoom));
+	}
+
+	private int captionHeight() {
+		return figures.size() > 1 ? getFontMetrics(getFont()).getHeight() : 0;
+	}
+
+	private static void scrollTo(JViewport viewport, Point position) {
+		Dimension view = viewport.getViewSize();
+		Dimension extent = viewport.getExtentSize();
+		position.x = Math.max(0, Math.min(position.x, view.width - extent.width));
+		position.y = Math.max(0, Math.min(position.y, view.height - extent.height));
+		viewport.setViewPosition(position);
+	}
+
+	@Override
+	public Dimension getPreferredScrollableViewportSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return 16;
+	}
+
+	@Override
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+		return Math.max(16, (orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width) - 32);
+	}
+
+	// stretched to the viewport when smaller, so the figures are centered
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+	}
+
+	@Override
+	public boolean getScrollableTracksViewportHeight() {
+		return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+	}
+}
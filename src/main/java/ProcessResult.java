@@ -0,0 +1,18 @@
+public class ProcessResult {
+	private final int exitCode;
+	private final String output;
+
+	public ProcessResult(int exitCode, String output) {
+		this.exitCode = exitCode;
+		this.output = output;
+	}
+
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	// the last lines of stdout and stderr, interleaved
+	public String getOutput() {
+		return output;
+	}
+}
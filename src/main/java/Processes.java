@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class Processes {
+	private static final Logger logger = LoggerFactory.getLogger(Processes.class);
+	private static final int MAX_OUTPUT_LINES = 200;
+	private static final int MAX_LINE_LENGTH = 1000;
+	private static final ExecutorService outputReaders = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "process-output");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Processes() {
+	}
+
+	// deadline of a stage, overridable with -Dmpostviewer.timeout.<stage>=<seconds>
+	public static Duration timeout(String stage, int defaultSeconds) {
+		return Duration.ofSeconds(Long.getLong("mpostviewer.timeout." + stage, defaultSeconds));
+	}
+
+	// runs the command to completion; its output is read while it runs, so a chatty program can't
+	// block on a full pipe, and only the last lines of it are kept
+	public static ProcessResult run(String[] command, Path workingDirectory, Duration timeout) throws IOException, InterruptedException {
+		return run(command, workingDirectory, timeout, line -> true);
+	}
+
+	// outputListener sees every line as it's written and can stop the process by returning false
+	public static ProcessResult run(String[] command, Path workingDirectory, Duration timeout, Predicate<String> outputListener) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).directory(workingDirectory.toFile()).redirectErrorStream(true).start();
+		Future<String> output = outputReaders.submit(() -> readTail(process, outputListener));
+		try {
+			if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+				kill(process);
+				logger.warn("Killed [{}] after {} s:\n{}", String.join(" ", command), timeout.toSeconds(), getOutput(process, output));
+				throw new RenderTimeoutException(command[0], timeout);
+			}
+		} catch (InterruptedException e) {
+			// a cancelled render must not leave mpost or gs running in the background
+			kill(process);
+			throw e;
+		}
+		ProcessResult result = new ProcessResult(process.exitValue(), getOutput(process, output));
+		logProcessOutput(result, command);
+		return result;
+	}
+
+	private static void kill(Process process) {
+		// descendants first, once the parent is gone they're no longer its descendants
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+
+	private static String readTail(Process process, Predicate<String> outputListener) throws IOException {
+		Deque<String> lines = new ArrayDeque<>();
+		boolean listening = true;
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (listening && !outputListener.test(line)) {
+					listening = false;
+					kill(process);
+				}
+				if (lines.size() == MAX_OUTPUT_LINES) {
+					lines.removeFirst();
+				}
+				lines.addLast(line.length() > MAX_LINE_LENGTH ? line.substring(0, MAX_LINE_LENGTH) + "..." : line);
+			}
+		}
+		return String.join("\n", lines);
+	}
+
+	// the reader finishes once the process and its children have closed the pipe; a child left
+	// running in the background may keep it open, so don't wait for that forever
+	private static String getOutput(Process process, Future<String> output) throws InterruptedException {
+		try {
+			return output.get(1, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return "[unable to read output: " + e.getCause().getMessage() + "]";
+		} catch (TimeoutException e) {
+			try {
+				process.getInputStream().close();
+			} catch (IOException closeFailure) {
+				logger.debug(closeFailure.getMessage(), closeFailure);
+			}
+			return "[output still open]";
+		}
+	}
+
+	private static void logProcessOutput(ProcessResult result, String[] args) {
+		if (result.getExitCode() == 0 && !logger.isDebugEnabled()) {
+			return;
+		}
+
+		String command = String.join(" ", args);
+		StringBuilder sb = new StringBuilder("Exit code: [").append(result.getExitCode()).append("], command: [").append(command).append("]");
+		if (!result.getOutput().isEmpty()) {
+			sb.append('\n').append(result.getOutput());
+		}
+		sb.append("\nExit code: ").append(result.getExitCode());
+
+		if (result.getExitCode() != 0) {
+			logger.error(sb.toString());
+		} else {
+			logger.debug(sb.toString());
+		}
+	}
+}
@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Finds out which of the output backends work on this machine and picks the fastest one,
+// timing the whole compile + rasterize pipeline on a tiny figure.
+public class RasterizerProbe {
+	private static final Logger logger = LoggerFactory.getLogger(RasterizerProbe.class);
+	private static final String PROBE_SOURCE = "beginfig(1); draw (0,0)--(10,10); endfig; end\n";
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int ROUNDS = 2;
+	// a tiny figure, anything slower is as good as broken
+	private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(10);
+
+	private final List<OutputBackend> candidates;
+
+	public RasterizerProbe() {
+		this(List.of(new NativePngBackend(), new ConvertBackend(), new GhostscriptBackend()));
+	}
+
+	public RasterizerProbe(List<OutputBackend> candidates) {
+		this.candidates = candidates;
+	}
+
+	// returns null if none of the candidates works
+	public OutputBackend probe() throws InterruptedException {
+		OutputBackend fastest = null;
+		long fastestTime = Long.MAX_VALUE;
+		for (OutputBackend candidate : candidates) {
+			long time = benchmark(candidate);
+			if (time < 0) {
+				logger.info("Output backend {} is not available", candidate.getName());
+			} else {
+				logger.info("Output backend {} renders a probe figure in {} ms", candidate.getName(), time / 1_000_000);
+				if (time < fastestTime) {
+					fastest = candidate;
+					fastestTime = time;
+				}
+			}
+		}
+		if (fastest != null) {
+			logger.info("Using {} output backend", fastest.getName());
+		}
+		return fastest;
+	}
+
+	public List<OutputBackend> getCandidates() {
+		return candidates;
+	}
+
+	// best time out of a few rounds in nanoseconds, -1 if the backend doesn't work
+	private long benchmark(OutputBackend backend) throws InterruptedException {
+		Path probeDirectory = null;
+		try {
+			probeDirectory = Files.createTempDirectory("mpostviewer-probe");
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				Path probeFile = Files.writeString(probeDirectory.resolve("probe.mp"), PROBE_SOURCE);
+				long start = System.nanoTime();
+				int exitCode = Processes.run(MetapostService.getMetapostCommand(backend, RenderSettings.DEFAULT, probeFile.getFileName().toString()), probeDirectory, PROBE_TIMEOUT).getExitCode();
+				Path output = probeDirectory.resolve("probe.1");
+				if (exitCode != 0 || !Files.exists(output) || !isPng(backend.toPng(output, RenderSettings.DEFAULT))) {
+					return -1;
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			return best;
+		} catch (IOException e) {
+			logger.debug("Probing {} failed: {}", backend.getName(), e.getMessage());
+			return -1;
+		} finally {
+			if (probeDirectory != null) {
+				FileUtils.deleteQuietly(probeDirectory.toFile());
+			}
+		}
+	}
+
+	private static boolean isPng(Path file) throws IOException {
+		try (InputStream is = Files.newInputStream(file)) {
+			return Arrays.equals(is.readNBytes(PNG_SIGNATURE.length), PNG_SIGNATURE);
+		}
+	}
+}
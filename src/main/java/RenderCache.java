@@ -0,0 +1,223 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Two-level cache of rendered previews, keyed by a hash of the source and the render settings:
+// decoded images in memory (LRU with a byte budget) backed by files on disk, each holding
+// the PNGs of all figures of one render.
+public class RenderCache {
+	private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+	private static final String EXTENSION = ".figures";
+	private static final String TEMP_EXTENSION = ".tmp";
+	// older temp files were left behind by a crash, younger ones may still be written by a daemon
+	private static final long STALE_TEMP_AGE = TimeUnit.HOURS.toMillis(1);
+
+	private final Path directory;
+	private final long memoryBudget;
+	private final long diskBudget;
+	private final LinkedHashMap<String, RenderResult> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryUsage;
+	private long diskUsage;
+
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public RenderCache(Path directory, long memoryBudget, long diskBudget) {
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+		this.diskBudget = diskBudget;
+		try {
+			Files.createDirectories(directory);
+			deleteStaleTempFiles();
+			try (Stream<Path> files = Files.list(directory)) {
+				diskUsage = files.filter(p -> p.toString().endsWith(EXTENSION)).mapToLong(RenderCache::sizeOf).sum();
+			}
+		} catch (IOException e) {
+			logger.warn("Disk cache unavailable: {}", e.getMessage());
+		}
+	}
+
+	public static String key(String source, RenderSettings settings) {
+		return hash(settings.cacheKey() + '\0' + source);
+	}
+
+	public static String hash(String text) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// the PNGs of all figures of a render: their count, then number, length and bytes of each;
+	// also what the render daemon sends
+	public static void writeFigures(SortedMap<Integer, PreviewImage> figures, DataOutputStream out) throws IOException {
+		out.writeInt(figures.size());
+		for (Map.Entry<Integer, PreviewImage> figure : figures.entrySet()) {
+			out.writeInt(figure.getKey());
+			out.writeInt(figure.getValue().getPng().length);
+			out.write(figure.getValue().getPng());
+		}
+	}
+
+	public static SortedMap<Integer, PreviewImage> readFigures(DataInputStream in) throws IOException {
+		SortedMap<Integer, PreviewImage> figures = new TreeMap<>();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			int figure = in.readInt();
+			byte[] png = new byte[in.readInt()];
+			in.readFully(png);
+			figures.put(figure, new PreviewImage(png));
+		}
+		return figures;
+	}
+
+	public RenderResult get(String key) {
+		synchronized (this) {
+			RenderResult result = memory.get(key);
+			if (result != null) {
+				memoryHits.incrementAndGet();
+				return result;
+			}
+		}
+		Path file = directory.resolve(key + EXTENSION);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			SortedMap<Integer, PreviewImage> figures = readFigures(in);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			RenderResult result = new RenderResult(figures, new RenderTimings());
+			putInMemory(key, result);
+			diskHits.incrementAndGet();
+			return result;
+		} catch (IOException e) {
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	public RenderResult put(String key, RenderResult result) {
+		putInMemory(key, result);
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(directory, key, TEMP_EXTENSION);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				writeFigures(result.getFigures(), out);
+			}
+			Path file = directory.resolve(key + EXTENSION);
+			long previousSize = sizeOf(file);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			synchronized (this) {
+				diskUsage += sizeOf(file) - previousSize;
+			}
+			evictFromDisk();
+		} catch (IOException e) {
+			logger.warn("Unable to store preview in disk cache: {}", e.getMessage());
+			if (temp != null) {
+				temp.toFile().delete();
+			}
+		}
+		return result;
+	}
+
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("memory hits: %d, disk hits: %d, misses: %d, memory: %d kB, disk: %d kB", memoryHits.get(), diskHits.get(), misses.get(), memoryUsage / 1024, diskUsage / 1024);
+	}
+
+	private synchronized void putInMemory(String key, RenderResult result) {
+		RenderResult previous = memory.put(key, result);
+		if (previous != null) {
+			memoryUsage -= previous.estimatedSize();
+		}
+		memoryUsage += result.estimatedSize();
+		Iterator<Map.Entry<String, RenderResult>> eldest = memory.entrySet().iterator();
+		while (memoryUsage > memoryBudget && memory.size() > 1) {
+			memoryUsage -= eldest.next().getValue().estimatedSize();
+			eldest.remove();
+		}
+	}
+
+	private void evictFromDisk() throws IOException {
+		synchronized (this) {
+			if (diskUsage <= diskBudget) {
+				return;
+			}
+		}
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(directory)) {
+			files = stream.filter(p -> p.toString().endsWith(EXTENSION)).sorted(Comparator.comparing(RenderCache::lastModified)).collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			synchronized (this) {
+				if (diskUsage <= diskBudget) {
+					return;
+				}
+				diskUsage -= sizeOf(file);
+			}
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private void deleteStaleTempFiles() throws IOException {
+		long staleBefore = System.currentTimeMillis() - STALE_TEMP_AGE;
+		try (Stream<Path> files = Files.list(directory)) {
+			files.filter(p -> p.toString().endsWith(TEMP_EXTENSION) && lastModified(p).toMillis() < staleBefore).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private static long sizeOf(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+}
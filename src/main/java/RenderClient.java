@@ -0,0 +1,92 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Renders in a RenderDaemon, which shares its render cache and coalesces identical requests with
+// other clients. Errors come back as the same exceptions MetapostService throws.
+public class RenderClient implements Renderer {
+	private static final Pattern SERVER_TIMING = Pattern.compile("([^;,\\s]+);dur=([0-9.]+)(?:;desc=\"([^\"]*)\")?");
+
+	private final URI uri;
+	private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+	// port, or host:port
+	public RenderClient(String address) {
+		uri = URI.create("http://" + (address.contains(":") ? address : "127.0.0.1:" + address) + "/");
+	}
+
+	@Override
+	public RenderResult render(CharSequence snapshot, RenderSettings settings, RenderTimings timings) throws IOException {
+		long start = System.nanoTime();
+		String id = UUID.randomUUID().toString();
+		HttpRequest request = HttpRequest.newBuilder(uri.resolve("render?resolution=" + settings.getResolution() + "&antialiasing=" + settings.isAntialiasing() + "&id=" + id))
+			.POST(HttpRequest.BodyPublishers.ofString(snapshot.toString(), StandardCharsets.UTF_8)).build();
+		HttpResponse<byte[]> response;
+		try {
+			response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+		} catch (ConnectException e) {
+			throw new IOException("The render daemon at " + uri + " isn't running.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// without waiting for it, the daemon stops the render if nobody else waits for it
+			client.sendAsync(HttpRequest.newBuilder(uri.resolve("cancel?id=" + id)).POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+			throw new InterruptedIOException("Render cancelled");
+		}
+
+		// the daemon's stages, and whatever else the round trip took
+		long daemonNanos = 0;
+		for (String header : response.headers().allValues("Server-Timing")) {
+			Matcher matcher = SERVER_TIMING.matcher(header);
+			while (matcher.find()) {
+				long nanos = (long) (Double.parseDouble(matcher.group(2)) * 1e6);
+				timings.add(matcher.group(3) != null ? matcher.group(3) : matcher.group(1), nanos);
+				daemonNanos += nanos;
+			}
+		}
+		timings.add("transfer", Math.max(0, System.nanoTime() - start - daemonNanos));
+
+		String body = new String(response.body(), StandardCharsets.UTF_8);
+		switch (response.statusCode()) {
+		case 200:
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(response.body()))) {
+				return new RenderResult(RenderCache.readFigures(in), timings);
+			}
+		case 422:
+			List<Diagnostic> diagnostics = new ArrayList<>();
+			for (String line : body.split("\n")) {
+				String[] fields = line.split("\t", 3);
+				if (fields.length == 3) {
+					diagnostics.add(new Diagnostic(Integer.parseInt(fields[0]), RenderDaemon.unescape(fields[1]), RenderDaemon.unescape(fields[2])));
+				}
+			}
+			if (diagnostics.isEmpty()) {
+				throw new IOException("Compilation failed.");
+			}
+			throw new CompilationException(diagnostics);
+		case 504:
+			String program = response.headers().firstValue("X-Timeout-Program").orElse("mpost");
+			long seconds = Long.parseLong(response.headers().firstValue("X-Timeout-Seconds").orElse("0"));
+			throw new RenderTimeoutException(program, Duration.ofSeconds(seconds));
+		default:
+			throw new IOException("The render daemon failed (" + response.statusCode() + "): " + body);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Rendering in the daemon at " + uri;
+	}
+}
@@ -0,0 +1,359 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Main --daemon [--port N] [-j N]: one MetapostService, and so one pipeline and one render cache,
+// shared by every tool rendering the same sources, over HTTP on localhost.
+//
+// POST /render[?resolution=<dpi>&antialiasing=<true|false>&figure=<n>&id=<id>], the source (UTF-8) as body:
+//   200 all figures as written by RenderCache.writeFigures(), or only the PNG of the given figure
+//   422 one diagnostic per line: line, message and context separated by tabs, see escape()
+//   504 the render timed out, X-Timeout-Program and X-Timeout-Seconds tell which program and when
+//   503 the render was cancelled
+//   500 any other failure, the message as body
+// POST /cancel?id=<id>: gives up the render requested with that id.
+// GET /status: counters and caches.
+//
+// Stage timings are sent in a Server-Timing header. Identical requests in flight are rendered
+// once, and stopped once every request waiting for it was cancelled; at most N renders run at a
+// time, the others wait their turn in a fair queue.
+public class RenderDaemon {
+	private static final Logger logger = LoggerFactory.getLogger(RenderDaemon.class);
+	private static final String USAGE = "Usage: --daemon [--port N] [-j N]";
+	public static final int DEFAULT_PORT = 7171;
+	private static final int MAX_SOURCE_SIZE = 16 * 1024 * 1024;
+
+	private final MetapostService metapostService;
+	private final Semaphore permits;
+	// guarded by itself, like the waiters of the renders in it
+	private final Map<String, InFlightRender> inFlight = new HashMap<>();
+	// the requests which can be cancelled by id
+	private final Map<String, CompletableFuture<RenderResult>> cancellable = new ConcurrentHashMap<>();
+	private final ExecutorService renderPool = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "render-daemon-render");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicInteger running = new AtomicInteger();
+
+	private static class InFlightRender {
+		private final CompletableFuture<RenderResult> result = new CompletableFuture<>();
+		private Future<?> task;
+		private int waiters;
+	}
+
+	public RenderDaemon(MetapostService metapostService, int parallelism) {
+		this.metapostService = metapostService;
+		permits = new Semaphore(parallelism, true);
+	}
+
+	// returns a non-zero exit code if the daemon couldn't start, 0 once it's serving
+	public static int run(List<String> args) {
+		int port = DEFAULT_PORT;
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int i = 0; i < args.size(); i++) {
+				String arg = args.get(i);
+				if (arg.equals("--port")) {
+					port = Integer.parseInt(args.get(++i));
+				} else if (arg.equals("-j")) {
+					parallelism = Integer.parseInt(args.get(++i));
+				} else if (arg.startsWith("-j")) {
+					parallelism = Integer.parseInt(arg.substring(2));
+				} else {
+					throw new IllegalArgumentException(arg);
+				}
+			}
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println(USAGE);
+			return 2;
+		}
+		if (parallelism < 1) {
+			System.err.println(USAGE);
+			return 2;
+		}
+
+		MetapostService metapostService = new MetapostService(Paths.get(System.getProperty("user.home"), ".mpostviewer", "cache"));
+		try {
+			HttpServer server = new RenderDaemon(metapostService, parallelism).start(port);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+			System.out.println("Render daemon listening on http://127.0.0.1:" + server.getAddress().getPort() + " with " + parallelism + " render slots");
+			return 0;
+		} catch (IOException e) {
+			System.err.println("Unable to listen on port " + port + ": " + e.getMessage());
+			return 1;
+		}
+	}
+
+	// on localhost only; port 0 picks a free one
+	public HttpServer start(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// handlers block while waiting for a render slot, so every request gets a thread
+		server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "render-daemon");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.createContext("/render", this::handleRender);
+		server.createContext("/cancel", this::handleCancel);
+		server.createContext("/status", this::handleStatus);
+		server.start();
+		return server;
+	}
+
+	// renders once for all identical requests in flight; the render is interrupted when the last
+	// request waiting for it is cancelled, id may be null for requests which can't be
+	public RenderResult render(String source, RenderSettings settings, RenderTimings timings, String id) throws IOException {
+		requests.incrementAndGet();
+		String key = RenderCache.key(source, settings);
+		long start = System.nanoTime();
+		InFlightRender render;
+		boolean own;
+		CompletableFuture<RenderResult> waiter;
+		synchronized (inFlight) {
+			render = inFlight.get(key);
+			own = render == null;
+			if (own) {
+				InFlightRender newRender = new InFlightRender();
+				newRender.task = renderPool.submit(() -> run(key, newRender, source, settings, timings, start));
+				inFlight.put(key, newRender);
+				render = newRender;
+			} else {
+				coalesced.incrementAndGet();
+			}
+			render.waiters++;
+			// cancelling a copy leaves the render to the other waiters
+			waiter = render.result.copy();
+		}
+		if (id != null) {
+			cancellable.put(id, waiter);
+		}
+
+		try {
+			RenderResult result = waiter.get();
+			if (own) {
+				return result;
+			}
+			timings.add("coalesced", System.nanoTime() - start);
+			return result.withTimings(timings);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a render");
+		} catch (CancellationException e) {
+			throw new InterruptedIOException("Render cancelled");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			if (id != null) {
+				cancellable.remove(id, waiter);
+			}
+			synchronized (inFlight) {
+				if (--render.waiters == 0 && !render.result.isDone()) {
+					render.task.cancel(true);
+					inFlight.remove(key, render);
+				}
+			}
+		}
+	}
+
+	private void run(String key, InFlightRender render, String source, RenderSettings settings, RenderTimings timings, long start) {
+		try {
+			permits.acquire();
+			try {
+				timings.add("queue", System.nanoTime() - start);
+				running.incrementAndGet();
+				render.result.complete(metapostService.render(source, settings, timings));
+			} finally {
+				running.decrementAndGet();
+				permits.release();
+			}
+		} catch (InterruptedException e) {
+			render.result.completeExceptionally(new InterruptedIOException("Interrupted while waiting for a render slot"));
+		} catch (IOException | RuntimeException e) {
+			render.result.completeExceptionally(e);
+		} finally {
+			synchronized (inFlight) {
+				inFlight.remove(key, render);
+			}
+		}
+	}
+
+	// true if a request with that id was waiting
+	public boolean cancel(String id) {
+		CompletableFuture<RenderResult> waiter = cancellable.remove(id);
+		return waiter != null && waiter.cancel(false);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("requests: %d, coalesced: %d, rendering: %d, waiting: %d", requests.get(), coalesced.get(), running.get(), permits.getQueueLength())
+			+ "\n" + metapostService;
+	}
+
+	private void handleRender(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				respond(exchange, 405, "text/plain", "POST the source to render".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			RenderSettings settings = new RenderSettings(Integer.parseInt(query.getOrDefault("resolution", String.valueOf(RenderSettings.DEFAULT.getResolution()))),
+				Boolean.parseBoolean(query.getOrDefault("antialiasing", "true")));
+			byte[] source;
+			try (InputStream in = exchange.getRequestBody()) {
+				source = in.readNBytes(MAX_SOURCE_SIZE + 1);
+			}
+			if (source.length > MAX_SOURCE_SIZE) {
+				respond(exchange, 413, "text/plain", "Source too large".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			RenderTimings timings = new RenderTimings();
+			RenderResult result = render(new String(source, StandardCharsets.UTF_8), settings, timings, query.get("id"));
+			exchange.getResponseHeaders().add("Server-Timing", serverTiming(timings));
+			if (query.containsKey("figure")) {
+				PreviewImage figure = result.getFigures().get(Integer.parseInt(query.get("figure")));
+				if (figure == null) {
+					respond(exchange, 404, "text/plain", ("No figure " + query.get("figure")).getBytes(StandardCharsets.UTF_8));
+				} else {
+					respond(exchange, 200, "image/png", figure.getPng());
+				}
+			} else {
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				try (DataOutputStream out = new DataOutputStream(body)) {
+					RenderCache.writeFigures(result.getFigures(), out);
+				}
+				respond(exchange, 200, "application/octet-stream", body.toByteArray());
+			}
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "text/plain", ("Bad parameter: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+		} catch (CompilationException e) {
+			StringBuilder body = new StringBuilder();
+			for (Diagnostic diagnostic : e.getDiagnostics()) {
+				body.append(diagnostic.getLine()).append('\t').append(escape(diagnostic.getMessage())).append('\t').append(escape(diagnostic.getContext())).append('\n');
+			}
+			respond(exchange, 422, "text/plain", body.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (RenderTimeoutException e) {
+			exchange.getResponseHeaders().add("X-Timeout-Program", e.getProgram());
+			exchange.getResponseHeaders().add("X-Timeout-Seconds", String.valueOf(e.getTimeout().toSeconds()));
+			respond(exchange, 504, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+		} catch (InterruptedIOException e) {
+			// the client is most likely gone
+			respond(exchange, 503, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException | RuntimeException e) {
+			logger.error(e.getMessage(), e);
+			respond(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleCancel(HttpExchange exchange) throws IOException {
+		try {
+			String id = parseQuery(exchange.getRequestURI().getRawQuery()).get("id");
+			if (!exchange.getRequestMethod().equals("POST") || id == null) {
+				respond(exchange, 400, "text/plain", "POST /cancel?id=<id>".getBytes(StandardCharsets.UTF_8));
+			} else if (cancel(id)) {
+				respond(exchange, 200, "text/plain", "Cancelled".getBytes(StandardCharsets.UTF_8));
+			} else {
+				respond(exchange, 404, "text/plain", ("No render waiting for " + id).getBytes(StandardCharsets.UTF_8));
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		try {
+			respond(exchange, 200, "text/plain", (toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType + (contentType.startsWith("text/") ? "; charset=utf-8" : ""));
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	// "mpost;dur=12.3, gs;dur=4.5", durations in milliseconds
+	private static String serverTiming(RenderTimings timings) {
+		StringJoiner header = new StringJoiner(", ");
+		for (Map.Entry<String, Long> stage : timings.getStages().entrySet()) {
+			String name = stage.getKey().replaceAll("[^A-Za-z0-9_-]+", "_");
+			header.add(name + ";dur=" + String.format(Locale.ROOT, "%.1f", stage.getValue() / 1e6) + ";desc=\"" + stage.getKey() + "\"");
+		}
+		return header.toString();
+	}
+
+	// tabs and line breaks of diagnostics as \t and \n, backslashes doubled
+	static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	static String unescape(String text) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\' && i + 1 < text.length()) {
+				char next = text.charAt(++i);
+				sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> parameters = new HashMap<>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int equals = parameter.indexOf('=');
+				if (equals > 0) {
+					parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8), URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return parameters;
+	}
+}
@@ -0,0 +1,84 @@
+import java.awt.EventQueue;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Only the most recent snapshot of a document matters: submitting a new one cancels its render
+// in flight and results of stale renders are never published to the EDT. Renders run in a pool
+// shared by all open documents.
+public class RenderExecutor {
+	private static final Logger logger = LoggerFactory.getLogger(RenderExecutor.class);
+
+	private final Renderer renderer;
+	private final RenderPool pool;
+
+	private volatile long generation;
+	// a render deferred by the pool may finish anyway and then run again, touched on the EDT only
+	private long published;
+
+	public RenderExecutor(Renderer renderer, RenderPool pool) {
+		this.renderer = renderer;
+		this.pool = pool;
+	}
+
+	// the time spent waiting, rendering and decoding is added to the given timings
+	public synchronized void submit(CharSequence source, RenderSettings settings, RenderTimings timings, Consumer<SortedMap<Integer, TiledImage>> onSuccess, Consumer<IOException> onFailure) {
+		long snapshotGeneration = ++generation;
+		long submitted = System.nanoTime();
+		pool.submit(this, () -> {
+			timings.add("queue", System.nanoTime() - submitted);
+			try {
+				RenderResult result = renderer.render(source, settings, timings);
+				long start = System.nanoTime();
+				SortedMap<Integer, TiledImage> figures = new TreeMap<>();
+				for (Map.Entry<Integer, PreviewImage> figure : result.getFigures().entrySet()) {
+					figures.put(figure.getKey(), figure.getValue().getTiles());
+				}
+				timings.add("decode", System.nanoTime() - start);
+				publish(snapshotGeneration, () -> onSuccess.accept(figures));
+			} catch (InterruptedIOException e) {
+				logger.debug("Render of snapshot {} cancelled", snapshotGeneration);
+			} catch (IOException e) {
+				fail(snapshotGeneration, e, onFailure);
+			} catch (RuntimeException e) {
+				// e.g. from decoding, the scheduler still has to hear that the render is over
+				fail(snapshotGeneration, new IOException("Rendering failed: " + e, e), onFailure);
+			}
+		});
+	}
+
+	// gets the renders of this document ahead of the others
+	public void activate() {
+		pool.setActive(this);
+	}
+
+	public synchronized void shutdown() {
+		generation++;
+		pool.cancel(this);
+	}
+
+	// whatever an interrupt breaks (e.g. ClosedByInterruptException) is a cancellation too: a render
+	// deferred by the pool runs again and mustn't have its result dropped as already published
+	private void fail(long snapshotGeneration, IOException e, Consumer<IOException> onFailure) {
+		if (Thread.currentThread().isInterrupted()) {
+			logger.debug("Render of snapshot {} cancelled: {}", snapshotGeneration, e.toString());
+		} else {
+			publish(snapshotGeneration, () -> onFailure.accept(e));
+		}
+	}
+
+	private void publish(long snapshotGeneration, Runnable callback) {
+		EventQueue.invokeLater(() -> {
+			if (snapshotGeneration == generation && snapshotGeneration != published) {
+				published = snapshotGeneration;
+				callback.run();
+			}
+		});
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Rolling histograms of the preview stages, exported through JMX as mpostviewer:type=RenderMetrics
+// and one mpostviewer:type=RenderStage,name=<stage> bean per stage. With -Dmpostviewer.metrics=<file>
+// every render is also appended to that file, as JSON lines if it ends with .json, CSV otherwise.
+public class RenderMetrics implements RenderMetricsMBean {
+	private static final Logger logger = LoggerFactory.getLogger(RenderMetrics.class);
+	private static final int WINDOW = 256;
+	private static final String DOMAIN = "mpostviewer";
+
+	private final Map<String, StageHistogram> stages = new LinkedHashMap<>();
+	private final AtomicLong renders = new AtomicLong();
+	private final MBeanServer mbeanServer;
+	private BufferedWriter log;
+	private boolean jsonLog;
+
+	public RenderMetrics() {
+		mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		register(this, new String[] { "type", "RenderMetrics" });
+		String logFile = System.getProperty("mpostviewer.metrics");
+		if (logFile != null) {
+			openLog(Paths.get(logFile));
+		}
+	}
+
+	public void record(String source, int figures, RenderTimings timings) {
+		renders.incrementAndGet();
+		Map<String, Long> stageTimes = timings.getStages();
+		for (Map.Entry<String, Long> stage : stageTimes.entrySet()) {
+			getStage(stage.getKey()).add(stage.getValue());
+		}
+		writeLog(source, figures, stageTimes);
+	}
+
+	public synchronized StageHistogram getStage(String name) {
+		StageHistogram stage = stages.get(name);
+		if (stage == null) {
+			stage = new StageHistogram(WINDOW);
+			stages.put(name, stage);
+			register(stage, new String[] { "type", "RenderStage", "name", ObjectName.quote(name) });
+		}
+		return stage;
+	}
+
+	@Override
+	public long getRenders() {
+		return renders.get();
+	}
+
+	@Override
+	public synchronized String[] getStages() {
+		return stages.keySet().toArray(new String[0]);
+	}
+
+	// one line per stage: p50 and p95 of the recent renders
+	@Override
+	public synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, StageHistogram> stage : stages.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(String.format(Locale.ROOT, "%s: p50 %.0f ms, p95 %.0f ms", stage.getKey(), stage.getValue().getP50Millis(), stage.getValue().getP95Millis()));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized void reset() {
+		for (String name : stages.keySet()) {
+			unregister(new String[] { "type", "RenderStage", "name", ObjectName.quote(name) });
+		}
+		stages.clear();
+		renders.set(0);
+	}
+
+	private void register(Object mbean, String[] properties) {
+		try {
+			mbeanServer.registerMBean(mbean, objectName(properties));
+		} catch (JMException e) {
+			logger.warn("Unable to register {} in JMX: {}", mbean, e.getMessage());
+		}
+	}
+
+	private void unregister(String[] properties) {
+		try {
+			mbeanServer.unregisterMBean(objectName(properties));
+		} catch (JMException e) {
+			logger.warn("Unable to unregister {} from JMX: {}", String.join(",", properties), e.getMessage());
+		}
+	}
+
+	private static ObjectName objectName(String[] properties) throws JMException {
+		StringBuilder name = new StringBuilder(DOMAIN);
+		for (int i = 0; i < properties.length; i += 2) {
+			name.append(i == 0 ? ':' : ',').append(properties[i]).append('=').append(properties[i + 1]);
+		}
+		return new ObjectName(name.toString());
+	}
+
+	private void openLog(Path file) {
+		try {
+			boolean empty = !Files.exists(file) || Files.size(file) == 0;
+			jsonLog = file.getFileName().toString().endsWith(".json");
+			log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			if (empty && !jsonLog) {
+				log.write("time,document,characters,figures,stage,ms\n");
+				log.flush();
+			}
+			logger.info("Logging render metrics to {}", file);
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	// documents are identified by a prefix of the hash of their source
+	private synchronized void writeLog(String source, int figures, Map<String, Long> stageTimes) {
+		if (log == null) {
+			return;
+		}
+		String time = Instant.now().toString();
+		String document = RenderCache.hash(source).substring(0, 12);
+		int characters = source.length();
+		try {
+			if (jsonLog) {
+				StringBuilder line = new StringBuilder().append("{\"time\":\"").append(time).append("\",\"document\":\"").append(document)
+					.append("\",\"characters\":").append(characters).append(",\"figures\":").append(figures).append(",\"stages\":{");
+				String separator = "";
+				for (Map.Entry<String, Long> stage : stageTimes.entrySet()) {
+					line.append(separator).append('"').append(stage.getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\":").append(millis(stage.getValue()));
+					separator = ",";
+				}
+				log.write(line.append("}}\n").toString());
+			} else {
+				for (Map.Entry<String, Long> stage : stageTimes.entrySet()) {
+					log.write(String.join(",", time, document, Integer.toString(characters), Integer.toString(figures), '"' + stage.getKey().replace("\"", "\"\"") + '"',
+						millis(stage.getValue())) + "\n");
+				}
+			}
+			log.flush();
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			log = null;
+		}
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+}
@@ -0,0 +1,10 @@
+public interface RenderMetricsMBean {
+
+	long getRenders();
+
+	String[] getStages();
+
+	String getSummary();
+
+	void reset();
+}
@@ -0,0 +1,151 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Renders of all open documents on a fixed number of threads. Every RenderExecutor has at most one
+// render waiting and one running. The active document's render goes first; the other documents'
+// renders only start while a worker stays free for it, and when none is, one of them is interrupted
+// and put back in the queue until a worker is idle again.
+public class RenderPool {
+	private static final Logger logger = LoggerFactory.getLogger(RenderPool.class);
+	public static final int DEFAULT_SIZE = Integer.getInteger("mpostviewer.renderThreads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+	private final int size;
+	// oldest first
+	private final Map<RenderExecutor, Runnable> waiting = new LinkedHashMap<>();
+	private final Map<RenderExecutor, Render> running = new LinkedHashMap<>();
+	private RenderExecutor active;
+	private boolean shutdown;
+
+	private static class Render {
+		private final RenderExecutor owner;
+		private final Runnable task;
+		private final Thread worker;
+
+		Render(RenderExecutor owner, Runnable task, Thread worker) {
+			this.owner = owner;
+			this.task = task;
+			this.worker = worker;
+		}
+	}
+
+	public RenderPool(int size) {
+		this.size = size;
+		for (int i = 0; i < size; i++) {
+			Thread worker = new Thread(this::work, "render-pool-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	// the executor of the document the user is looking at, null if there's none
+	public synchronized void setActive(RenderExecutor executor) {
+		active = executor;
+		makeRoom();
+		notifyAll();
+	}
+
+	public synchronized void shutdown() {
+		shutdown = true;
+		waiting.clear();
+		for (Render render : running.values()) {
+			render.worker.interrupt();
+		}
+		notifyAll();
+	}
+
+	// replaces the render the executor has waiting and interrupts the one it has running
+	synchronized void submit(RenderExecutor owner, Runnable task) {
+		if (shutdown) {
+			return;
+		}
+		cancel(owner);
+		waiting.put(owner, task);
+		makeRoom();
+		notifyAll();
+	}
+
+	synchronized void cancel(RenderExecutor owner) {
+		waiting.remove(owner);
+		Render render = running.get(owner);
+		if (render != null) {
+			render.worker.interrupt();
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Render render;
+			try {
+				render = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (render == null) {
+				return;
+			}
+			try {
+				render.task.run();
+			} catch (RuntimeException e) {
+				logger.error(e.getMessage(), e);
+			} finally {
+				finished(render);
+			}
+		}
+	}
+
+	private synchronized Render take() throws InterruptedException {
+		while (!shutdown) {
+			RenderExecutor owner = next();
+			if (owner != null) {
+				Render render = new Render(owner, waiting.remove(owner), Thread.currentThread());
+				running.put(owner, render);
+				return render;
+			}
+			wait();
+		}
+		return null;
+	}
+
+	private synchronized void finished(Render render) {
+		running.remove(render.owner);
+		// workers are interrupted under this lock only, so a late cancel can't reach the next render
+		Thread.interrupted();
+		notifyAll();
+	}
+
+	// the next executor whose render may start, null if none
+	private RenderExecutor next() {
+		if (active != null && waiting.containsKey(active) && !running.containsKey(active)) {
+			return active;
+		}
+		long background = running.keySet().stream().filter(owner -> owner != active).count();
+		if (background >= Math.max(1, size - 1)) {
+			return null;
+		}
+		for (RenderExecutor owner : waiting.keySet()) {
+			if (owner != active && !running.containsKey(owner)) {
+				return owner;
+			}
+		}
+		return null;
+	}
+
+	// the active document's render waits for a busy pool: defer the oldest background render
+	private void makeRoom() {
+		if (active == null || !waiting.containsKey(active) || running.containsKey(active) || running.size() < size) {
+			return;
+		}
+		for (Render render : running.values()) {
+			// skips renders which are winding down already
+			if (render.owner != active && !waiting.containsKey(render.owner)) {
+				render.worker.interrupt();
+				waiting.putIfAbsent(render.owner, render.task);
+				logger.debug("Background render deferred for the active document");
+				return;
+			}
+		}
+	}
+}
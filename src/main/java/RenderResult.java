@@ -0,0 +1,31 @@
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// All figures produced by one mpost run, keyed by their beginfig number.
+public class RenderResult {
+	private final SortedMap<Integer, PreviewImage> figures;
+	private final RenderTimings timings;
+
+	public RenderResult(SortedMap<Integer, PreviewImage> figures, RenderTimings timings) {
+		this.figures = Collections.unmodifiableSortedMap(new TreeMap<>(figures));
+		this.timings = timings;
+	}
+
+	// the same figures, e.g. served from a cache, with the timings of the request at hand
+	public RenderResult withTimings(RenderTimings requestTimings) {
+		return new RenderResult(figures, requestTimings);
+	}
+
+	public RenderTimings getTimings() {
+		return timings;
+	}
+
+	public SortedMap<Integer, PreviewImage> getFigures() {
+		return figures;
+	}
+
+	public long estimatedSize() {
+		return figures.values().stream().mapToLong(PreviewImage::estimatedSize).sum();
+	}
+}
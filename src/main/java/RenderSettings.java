@@ -0,0 +1,51 @@
+public final class RenderSettings {
+	// full quality, -Dmpostviewer.resolution=<dpi> to override
+	public static final RenderSettings DEFAULT = new RenderSettings(Integer.getInteger("mpostviewer.resolution", 72), true);
+	// quick renders while typing, shown stretched to the size of the full ones
+	public static final RenderSettings DRAFT = new RenderSettings(Math.max(18, DEFAULT.resolution / 2), false);
+
+	private final int resolution;
+	private final boolean antialiasing;
+
+	public RenderSettings(int resolution, boolean antialiasing) {
+		this.resolution = resolution;
+		this.antialiasing = antialiasing;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	public boolean isAntialiasing() {
+		return antialiasing;
+	}
+
+	// how many times larger than rendered its images have to be shown to match the default settings
+	public double getDisplayScale() {
+		return (double) DEFAULT.resolution / resolution;
+	}
+
+	// part of the render cache key, so it has to change whenever the output would
+	public String cacheKey() {
+		return "r" + resolution + (antialiasing ? "-aa" : "");
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RenderSettings)) {
+			return false;
+		}
+		RenderSettings other = (RenderSettings) obj;
+		return resolution == other.resolution && antialiasing == other.antialiasing;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * resolution + (antialiasing ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return resolution + " dpi" + (antialiasing ? ", antialiased" : "");
+	}
+}
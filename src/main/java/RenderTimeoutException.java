@@ -0,0 +1,24 @@
+import java.io.IOException;
+import java.time.Duration;
+
+// An external program didn't finish within its deadline and was killed, together with its children.
+public class RenderTimeoutException extends IOException {
+	private static final long serialVersionUID = 2387201658923361014L;
+
+	private final String program;
+	private final Duration timeout;
+
+	public RenderTimeoutException(String program, Duration timeout) {
+		super(program + " didn't finish within " + timeout.toSeconds() + " s and was stopped. Is there an endless loop?");
+		this.program = program;
+		this.timeout = timeout;
+	}
+
+	public String getProgram() {
+		return program;
+	}
+
+	public Duration getTimeout() {
+		return timeout;
+	}
+}
@@ -0,0 +1,32 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Wall-clock time spent in each stage of one render, in the order the stages ran.
+public class RenderTimings {
+	private final Map<String, Long> stages = new LinkedHashMap<>();
+
+	public synchronized void add(String stage, long nanos) {
+		stages.merge(stage, nanos, Long::sum);
+	}
+
+	public synchronized Map<String, Long> getStages() {
+		return new LinkedHashMap<>(stages);
+	}
+
+	public synchronized long getTotal() {
+		return stages.values().stream().mapToLong(Long::longValue).sum();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> stage : stages.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(stage.getKey()).append(' ').append(TimeUnit.NANOSECONDS.toMillis(stage.getValue())).append(" ms");
+		}
+		return sb.toString();
+	}
+}
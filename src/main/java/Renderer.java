@@ -0,0 +1,10 @@
+import java.io.IOException;
+
+// Turns MetaPost source into figures: in this process (MetapostService) or in a render daemon
+// (RenderClient).
+public interface Renderer {
+
+	// source has to be a snapshot, it must not change while the render runs; adds the time of
+	// every stage to the given timings
+	RenderResult render(CharSequence snapshot, RenderSettings settings, RenderTimings timings) throws IOException;
+}
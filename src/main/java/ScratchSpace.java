@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Per-session directory for everything mpost writes, in memory (/dev/shm) where available. Renders
+// borrow a directory of their own, which is emptied when it's given back and reused by the next
+// render. Sessions of processes which are no longer running are removed on startup.
+public class ScratchSpace {
+	private static final Logger logger = LoggerFactory.getLogger(ScratchSpace.class);
+	private static final String PREFIX = "mpostviewer-session";
+	private static final String OWNER_FILE = "owner.pid";
+	private static final Path SHARED_MEMORY = Paths.get("/dev/shm");
+
+	private final Path sessionDirectory;
+	private final ConcurrentLinkedDeque<Path> freeDirectories = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger directoryCount = new AtomicInteger();
+
+	public ScratchSpace() throws IOException {
+		Path root = Files.isDirectory(SHARED_MEMORY) && Files.isWritable(SHARED_MEMORY) ? SHARED_MEMORY : Paths.get(System.getProperty("java.io.tmpdir"));
+		removeAbandonedSessions(root);
+		sessionDirectory = Files.createTempDirectory(root, PREFIX);
+		Files.writeString(sessionDirectory.resolve(OWNER_FILE), Long.toString(ProcessHandle.current().pid()));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> FileUtils.deleteQuietly(sessionDirectory.toFile())));
+		logger.debug("Scratch space: {}", sessionDirectory);
+	}
+
+	public Path getSessionDirectory() {
+		return sessionDirectory;
+	}
+
+	// an empty directory, to be given back with release()
+	public Path acquire() throws IOException {
+		Path directory = freeDirectories.poll();
+		if (directory == null) {
+			directory = Files.createDirectory(sessionDirectory.resolve("render-" + directoryCount.incrementAndGet()));
+		}
+		return directory;
+	}
+
+	public void release(Path directory) {
+		try {
+			FileUtils.cleanDirectory(directory.toFile());
+			freeDirectories.push(directory);
+		} catch (IOException | IllegalArgumentException e) {
+			logger.warn("Unable to clean {}: {}", directory, e.getMessage());
+			FileUtils.deleteQuietly(directory.toFile());
+		}
+	}
+
+	// sessions left behind by crashed or killed instances
+	private static void removeAbandonedSessions(Path root) {
+		try (DirectoryStream<Path> sessions = Files.newDirectoryStream(root, PREFIX + "*")) {
+			for (Path session : sessions) {
+				if (!isOwnerRunning(session)) {
+					logger.info("Removing abandoned scratch directory {}", session);
+					FileUtils.deleteQuietly(session.toFile());
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to look for abandoned scratch directories: {}", e.getMessage());
+		}
+	}
+
+	private static boolean isOwnerRunning(Path session) {
+		try {
+			long pid = Long.parseLong(Files.readString(session.resolve(OWNER_FILE)).trim());
+			return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+		} catch (IOException | NumberFormatException e) {
+			// just being created, or left by an older version; leave it alone
+			return true;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+import java.util.Arrays;
+
+// Durations of one stage over the most recent renders. Count covers all of them, the rest
+// only the samples still in the window.
+public class StageHistogram implements StageHistogramMBean {
+	private final long[] samples;
+	private long count;
+
+	public StageHistogram(int window) {
+		samples = new long[window];
+	}
+
+	public synchronized void add(long nanos) {
+		samples[(int) (count++ % samples.length)] = nanos;
+	}
+
+	@Override
+	public synchronized long getCount() {
+		return count;
+	}
+
+	@Override
+	public synchronized double getLastMillis() {
+		return count == 0 ? 0 : toMillis(samples[(int) ((count - 1) % samples.length)]);
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long[] window = window();
+		return window.length == 0 ? 0 : toMillis(Arrays.stream(window).sum()) / window.length;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return percentile(50);
+	}
+
+	@Override
+	public double getP95Millis() {
+		return percentile(95);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return percentile(100);
+	}
+
+	// nearest-rank percentile of the samples in the window
+	public double percentile(int percentile) {
+		long[] window = window();
+		if (window.length == 0) {
+			return 0;
+		}
+		Arrays.sort(window);
+		int rank = (int) Math.ceil(percentile / 100.0 * window.length);
+		return toMillis(window[Math.max(rank, 1) - 1]);
+	}
+
+	private synchronized long[] window() {
+		return Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,14 @@
+public interface StageHistogramMBean {
+
+	long getCount();
+
+	double getLastMillis();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP95Millis();
+
+	double getMaxMillis();
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.StyledDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps the lexer state at the start of every line, so that an edit only re-lexes
+// lines from the edited one until the state at a line boundary matches the cached one.
+public class SyntaxHighlighter implements DocumentListener {
+	private static final Logger logger = LoggerFactory.getLogger(SyntaxHighlighter.class);
+
+	private final StyledDocument document;
+	private final List<EditorState> lineStates = new ArrayList<>();
+	private final Segment segment = new Segment();
+
+	private int dirtyFrom = -1;
+	private int dirtyTo = -1;
+	private boolean flushScheduled;
+
+	public SyntaxHighlighter(StyledDocument document) {
+		this.document = document;
+		segment.setPartialReturn(false);
+		int lines = document.getDefaultRootElement().getElementCount();
+		lineStates.addAll(Collections.nCopies(lines, EditorState.NORMAL));
+		markDirty(0, lines - 1);
+	}
+
+	// for documents which are already highlighted, see EditorDocument
+	public SyntaxHighlighter(StyledDocument document, List<EditorState> lineStates) {
+		this.document = document;
+		segment.setPartialReturn(false);
+		this.lineStates.addAll(lineStates);
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		int line = document.getDefaultRootElement().getElementIndex(e.getOffset());
+		int added = document.getDefaultRootElement().getElementCount() - lineStates.size();
+		if (added > 0) {
+			lineStates.addAll(line + 1, Collections.nCopies(added, EditorState.NORMAL));
+			if (dirtyTo > line) {
+				dirtyTo += added;
+			}
+		}
+		markDirty(line, line + Math.max(added, 0));
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		int line = document.getDefaultRootElement().getElementIndex(e.getOffset());
+		int removed = lineStates.size() - document.getDefaultRootElement().getElementCount();
+		if (removed > 0) {
+			lineStates.subList(line + 1, line + 1 + removed).clear();
+			if (dirtyTo > line) {
+				dirtyTo = Math.max(line, dirtyTo - removed);
+			}
+		}
+		markDirty(line, line);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+		// attribute changes, most of them our own
+	}
+
+	// restyles the dirty lines right away; edits which didn't go through EditorFilter
+	// (undo, redo) are flushed later on the EDT
+	public void flush() {
+		if (dirtyFrom < 0) {
+			return;
+		}
+		int from = dirtyFrom;
+		int to = dirtyTo;
+		dirtyFrom = dirtyTo = -1;
+
+		Element root = document.getDefaultRootElement();
+		int lines = root.getElementCount();
+		EditorState state = lineStates.get(Math.min(from, lines - 1));
+		try {
+			for (int line = Math.min(from, lines - 1); line < lines; line++) {
+				Element element = root.getElement(line);
+				int start = element.getStartOffset();
+				int end = Math.min(element.getEndOffset(), document.getLength());
+				document.getText(start, end - start, segment);
+				state = MetapostLexer.lexLine(segment, state, (offset, length, style) -> applyStyle(start + offset, length, style));
+				if (line + 1 < lines) {
+					if (line >= to && lineStates.get(line + 1) == state) {
+						break;
+					}
+					lineStates.set(line + 1, state);
+				}
+			}
+		} catch (BadLocationException e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void applyStyle(int offset, int length, FontStyling style) {
+		Element run = document.getCharacterElement(offset);
+		if (run.getStartOffset() <= offset && run.getEndOffset() >= offset + length && run.getAttributes().isEqual(style.getAttributeSet())) {
+			return;
+		}
+		document.setCharacterAttributes(offset, length, style.getAttributeSet(), true);
+	}
+
+	private void markDirty(int from, int to) {
+		dirtyFrom = dirtyFrom < 0 ? from : Math.min(dirtyFrom, from);
+		dirtyTo = Math.max(dirtyTo, to);
+		if (!flushScheduled) {
+			flushScheduled = true;
+			SwingUtilities.invokeLater(() -> {
+				flushScheduled = false;
+				flush();
+			});
+		}
+	}
+}
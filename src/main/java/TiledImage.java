@@ -0,0 +1,187 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A figure cut into tiles at a pyramid of scales (mipmaps): level 0 is the image itself, every
+// further level half the size of the previous one, built by downscaling four tiles of the finer
+// level. Level 0 tiles are views of the image, the scaled ones live in an LRU shared by all
+// images and bounded in bytes, so zooming out of a large poster costs a fixed amount of memory.
+public class TiledImage {
+	public static final int TILE_SIZE = 256;
+	private static final long CACHE_BUDGET = 64L * 1024 * 1024;
+	private static final AtomicLong ids = new AtomicLong();
+
+	private static final LinkedHashMap<TileKey, BufferedImage> cache = new LinkedHashMap<>(64, 0.75f, true);
+	private static long cacheUsage;
+
+	private final long id = ids.incrementAndGet();
+	private final BufferedImage image;
+	private final int levels;
+	// the coarsest level, always at hand to paint something while finer tiles are being made
+	private final BufferedImage thumbnail;
+
+	private static class TileKey {
+		private final long image;
+		private final int level;
+		private final int column;
+		private final int row;
+
+		TileKey(long image, int level, int column, int row) {
+			this.image = image;
+			this.level = level;
+			this.column = column;
+			this.row = row;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TileKey)) {
+				return false;
+			}
+			TileKey other = (TileKey) o;
+			return image == other.image && level == other.level && column == other.column && row == other.row;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(image, level, column, row);
+		}
+	}
+
+	// off the EDT, it builds the pyramid down to the thumbnail
+	public TiledImage(BufferedImage image) {
+		this.image = image;
+		int size = Math.max(image.getWidth(), image.getHeight());
+		int levelCount = 1;
+		while (size > TILE_SIZE) {
+			size = (size + 1) / 2;
+			levelCount++;
+		}
+		levels = levelCount;
+		thumbnail = getTile(levels - 1, 0, 0);
+	}
+
+	// an image the screen can draw without conversion; the original if running headless
+	public static BufferedImage toCompatible(BufferedImage image) {
+		if (GraphicsEnvironment.isHeadless()) {
+			return image;
+		}
+		BufferedImage compatible = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+			.createCompatibleImage(image.getWidth(), image.getHeight(), Transparency.TRANSLUCENT);
+		if (compatible.getColorModel().equals(image.getColorModel())) {
+			return image;
+		}
+		Graphics2D g = compatible.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return compatible;
+	}
+
+	public int getWidth() {
+		return image.getWidth();
+	}
+
+	public int getHeight() {
+		return image.getHeight();
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	public BufferedImage getThumbnail() {
+		return thumbnail;
+	}
+
+	// the finest level which still has at least one image pixel per screen pixel at the given zoom
+	public int levelFor(double zoom) {
+		int level = 0;
+		while (level < levels - 1 && zoom <= 1.0 / (1 << (level + 1))) {
+			level++;
+		}
+		return level;
+	}
+
+	public int levelWidth(int level) {
+		return ceilShift(image.getWidth(), level);
+	}
+
+	public int levelHeight(int level) {
+		return ceilShift(image.getHeight(), level);
+	}
+
+	// the tile if it's at hand, null if it has to be made by getTile() first
+	public BufferedImage getCachedTile(int level, int column, int row) {
+		if (level == 0) {
+			return levelZeroTile(column, row);
+		}
+		synchronized (cache) {
+			return cache.get(new TileKey(id, level, column, row));
+		}
+	}
+
+	public BufferedImage getTile(int level, int column, int row) {
+		BufferedImage tile = getCachedTile(level, column, row);
+		if (tile == null) {
+			tile = downscale(level, column, row);
+			store(new TileKey(id, level, column, row), tile);
+		}
+		return tile;
+	}
+
+	private BufferedImage levelZeroTile(int column, int row) {
+		int x = column * TILE_SIZE;
+		int y = row * TILE_SIZE;
+		return image.getSubimage(x, y, Math.min(TILE_SIZE, image.getWidth() - x), Math.min(TILE_SIZE, image.getHeight() - y));
+	}
+
+	// box filtering by bilinear halving of the four tiles beneath
+	private BufferedImage downscale(int level, int column, int row) {
+		int width = Math.min(TILE_SIZE, levelWidth(level) - column * TILE_SIZE);
+		int height = Math.min(TILE_SIZE, levelHeight(level) - row * TILE_SIZE);
+		BufferedImage tile = new BufferedImage(width, height, image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB_PRE : image.getType());
+		Graphics2D g = tile.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		int finerColumns = (levelWidth(level - 1) + TILE_SIZE - 1) / TILE_SIZE;
+		int finerRows = (levelHeight(level - 1) + TILE_SIZE - 1) / TILE_SIZE;
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				int finerColumn = column * 2 + dx;
+				int finerRow = row * 2 + dy;
+				if (finerColumn < finerColumns && finerRow < finerRows) {
+					BufferedImage finer = getTile(level - 1, finerColumn, finerRow);
+					g.drawImage(finer, dx * TILE_SIZE / 2, dy * TILE_SIZE / 2, (finer.getWidth() + 1) / 2, (finer.getHeight() + 1) / 2, null);
+				}
+			}
+		}
+		g.dispose();
+		return tile;
+	}
+
+	private static void store(TileKey key, BufferedImage tile) {
+		synchronized (cache) {
+			BufferedImage previous = cache.put(key, tile);
+			cacheUsage += sizeOf(tile) - (previous != null ? sizeOf(previous) : 0);
+			Iterator<Map.Entry<TileKey, BufferedImage>> eldest = cache.entrySet().iterator();
+			while (cacheUsage > CACHE_BUDGET && eldest.hasNext()) {
+				cacheUsage -= sizeOf(eldest.next().getValue());
+				eldest.remove();
+			}
+		}
+	}
+
+	private static long sizeOf(BufferedImage tile) {
+		return (long) tile.getWidth() * tile.getHeight() * 4;
+	}
+
+	private static int ceilShift(int size, int level) {
+		return Math.max(1, (size + (1 << level) - 1) >> level);
+	}
+}
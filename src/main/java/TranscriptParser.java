@@ -0,0 +1,50 @@
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Picks the first error out of mpost's terminal output as it's written:
+//
+// ! Undefined coordinates (...).
+// <to be read again>
+// l.3 draw (a,b)
+//               ;
+//
+// Returns false once it has the error, i.e. when reading (and mpost) can stop.
+public class TranscriptParser implements Predicate<String> {
+	private static final Pattern LINE_CONTEXT = Pattern.compile("^l\\.(\\d+) (.*)$");
+
+	private String message;
+	private int line;
+	private String contextBefore;
+	private String context;
+
+	@Override
+	public synchronized boolean test(String outputLine) {
+		if (context != null) {
+			return false;
+		} else if (message == null) {
+			if (outputLine.startsWith("! ")) {
+				message = outputLine.substring(2).trim();
+			}
+		} else if (contextBefore == null) {
+			Matcher matcher = LINE_CONTEXT.matcher(outputLine);
+			if (matcher.matches()) {
+				line = Integer.parseInt(matcher.group(1));
+				contextBefore = matcher.group(2);
+			}
+		} else {
+			// the rest of the line, indented to where the error occurred
+			context = contextBefore + '\n' + outputLine;
+			return false;
+		}
+		return true;
+	}
+
+	// null if mpost didn't report an error; line is 0 if the error isn't tied to one
+	public synchronized Diagnostic getDiagnostic() {
+		if (message == null) {
+			return null;
+		}
+		return new Diagnostic(line, message, context != null ? context : contextBefore != null ? contextBefore : "");
+	}
+}
@@ -0,0 +1,197 @@
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+// Undo history of user actions rather than document events: everything done between
+// beginAction() and endAction() (e.g. a removal and the indent fix-up that follows it) is one
+// step, and so is a run of typing or deleting at one place without pauses. Style changes made by
+// the highlighter aren't recorded at all. The oldest steps are dropped once the text they hold
+// exceeds the byte budget, however many there are.
+public class UndoHistory extends UndoManager {
+	private static final long serialVersionUID = 1803592207431867612L;
+	private static final long DEFAULT_BUDGET = 4L * 1024 * 1024;
+	private static final long TYPING_PAUSE = 1000;
+	// element and event bookkeeping held by every edit, roughly
+	private static final int EDIT_OVERHEAD = 96;
+	private static final int LINE_OVERHEAD = 64;
+
+	private final long budget;
+	private long size;
+	private UserEdit open;
+	private int actionDepth;
+	// edits made by the current action so far
+	private int actionEdits;
+
+	// one undo step, which may take further edits until it's sealed
+	private static class UserEdit extends CompoundEdit {
+		private static final long serialVersionUID = -2962713301617208962L;
+
+		private long bytes;
+		private DocumentEvent.EventType type;
+		// where the next keystroke has to be to continue this step
+		private int nextOffset;
+		private long lastEdit;
+		private boolean sealed;
+
+		UserEdit() {
+			// not in progress, so that it can be undone right away
+			end();
+		}
+
+		// edits reach it through append() only
+		@Override
+		public boolean addEdit(UndoableEdit edit) {
+			return false;
+		}
+
+		boolean continuesTyping(UndoableEdit edit) {
+			if (sealed || !(edit instanceof DocumentEvent) || System.currentTimeMillis() - lastEdit > TYPING_PAUSE) {
+				return false;
+			}
+			DocumentEvent event = (DocumentEvent) edit;
+			if (event.getType() != type || event.getLength() != 1) {
+				return false;
+			}
+			// backspace moves back, delete stays in place
+			return event.getOffset() == nextOffset || type == DocumentEvent.EventType.REMOVE && event.getOffset() + 1 == nextOffset;
+		}
+
+		void append(UndoableEdit edit, long editSize) {
+			edits.add(edit);
+			bytes += editSize;
+			lastEdit = System.currentTimeMillis();
+			if (edit instanceof DocumentEvent) {
+				DocumentEvent event = (DocumentEvent) edit;
+				type = event.getType();
+				nextOffset = type == DocumentEvent.EventType.INSERT ? event.getOffset() + event.getLength() : event.getOffset();
+				// a new line or a paste ends the step
+				if (type == DocumentEvent.EventType.INSERT && (event.getLength() > 1 || isNewLine(event))) {
+					sealed = true;
+				}
+			} else {
+				sealed = true;
+			}
+		}
+
+		private static boolean isNewLine(DocumentEvent event) {
+			try {
+				return event.getDocument().getText(event.getOffset(), 1).equals("\n");
+			} catch (BadLocationException e) {
+				return true;
+			}
+		}
+	}
+
+	public UndoHistory() {
+		this(DEFAULT_BUDGET);
+	}
+
+	public UndoHistory(long budget) {
+		this.budget = budget;
+		// the budget limits the history, not the number of steps
+		setLimit(-1);
+	}
+
+	public synchronized void beginAction() {
+		if (actionDepth++ == 0) {
+			actionEdits = 0;
+		}
+	}
+
+	public synchronized void endAction() {
+		// an action of several edits (e.g. typing over a selection) isn't continued by typing
+		if (--actionDepth == 0 && actionEdits > 1 && open != null) {
+			open.sealed = true;
+		}
+	}
+
+	// bytes of text and bookkeeping held by the history
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized void undoableEditHappened(UndoableEditEvent e) {
+		UndoableEdit edit = e.getEdit();
+		if (edit instanceof DocumentEvent && ((DocumentEvent) edit).getType() == DocumentEvent.EventType.CHANGE) {
+			// attributes only, set by the highlighter
+			return;
+		}
+		long editSize = sizeOf(edit);
+		// a sealed step is never continued, so steps which could be redone are dropped by addEdit()
+		boolean sameAction = actionDepth > 0 && actionEdits > 0;
+		if (open == null || !sameAction && !open.continuesTyping(edit)) {
+			if (open != null) {
+				open.sealed = true;
+			}
+			open = new UserEdit();
+			addEdit(open);
+		}
+		open.append(edit, editSize);
+		if (actionDepth > 0) {
+			actionEdits++;
+		}
+		size += editSize;
+		// nothing can be redone at this point, the open step is the last one
+		while (size > budget && edits.size() > 1) {
+			trimEdits(0, 0);
+		}
+	}
+
+	@Override
+	public synchronized void undo() {
+		seal();
+		super.undo();
+	}
+
+	@Override
+	public synchronized void redo() {
+		seal();
+		super.redo();
+	}
+
+	@Override
+	public synchronized void discardAllEdits() {
+		super.discardAllEdits();
+		open = null;
+		size = 0;
+	}
+
+	@Override
+	protected void trimEdits(int from, int to) {
+		for (int i = from; i <= to; i++) {
+			UndoableEdit edit = edits.get(i);
+			if (edit instanceof UserEdit) {
+				size -= ((UserEdit) edit).bytes;
+			}
+			if (edit == open) {
+				open = null;
+			}
+		}
+		super.trimEdits(from, to);
+	}
+
+	private void seal() {
+		if (open != null) {
+			open.sealed = true;
+		}
+	}
+
+	private static long sizeOf(UndoableEdit edit) {
+		if (!(edit instanceof DocumentEvent)) {
+			return EDIT_OVERHEAD;
+		}
+		DocumentEvent event = (DocumentEvent) edit;
+		long lines = 0;
+		Element root = event.getDocument().getDefaultRootElement();
+		DocumentEvent.ElementChange change = event.getChange(root);
+		if (change != null) {
+			lines = change.getChildrenAdded().length + change.getChildrenRemoved().length;
+		}
+		return EDIT_OVERHEAD + 2L * event.getLength() + LINE_OVERHEAD * lines;
+	}
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// A crash is simulated by closing the journal, which commits what's pending and keeps the files.
+public class EditJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversEditsAfterCrash() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("autosave");
+		EditJournal journal = new EditJournal(directory);
+		PlainDocument document = session(journal, "hello\n");
+		document.insertString(5, " world", null);
+		document.remove(0, 1);
+		journal.close();
+
+		assertEquals("ello world\n", new EditJournal(directory).recover());
+	}
+
+	@Test
+	public void discardedSessionLeavesNothingToRecover() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("autosave");
+		EditJournal journal = new EditJournal(directory);
+		PlainDocument document = session(journal, "hello\n");
+		document.insertString(0, "x", null);
+		journal.discard();
+		journal.close();
+
+		assertNull(new EditJournal(directory).recover());
+	}
+
+	@Test
+	public void recoversAgainAfterCrashFollowingCompaction() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("autosave");
+
+		// the first session compacts into a later journal, then crashes; the edit which gets the
+		// journal over the threshold is a small one, so the later journal's records fit short texts
+		EditJournal first = new EditJournal(directory);
+		PlainDocument document = session(first, "hello\n");
+		String filler = "x".repeat(1024 * 1024 - 40);
+		document.insertString(0, filler, null);
+		document.remove(0, filler.length());
+		document.insertString(0, "compacted ", null);
+		document.insertString(0, "again ", null);
+		first.close();
+		String recovered = new EditJournal(directory).recover();
+		assertEquals("again compacted hello\n", recovered);
+
+		// the second one starts from the recovered text, edits and crashes as well
+		EditJournal second = new EditJournal(directory);
+		assertEquals(recovered, second.recover());
+		document = session(second, recovered);
+		document.remove(0, "again compacted ".length());
+		document.insertString(5, "!", null);
+		second.close();
+
+		assertEquals("hello!\n", new EditJournal(directory).recover());
+	}
+
+	@Test
+	public void keepsEditsMadeAfterTheCompactionSnapshot() throws Exception {
+		Path directory = folder.getRoot().toPath().resolve("autosave");
+		EditJournal journal = new EditJournal(directory);
+		PlainDocument document = session(journal, "hello\n");
+		String filler = "x".repeat(1024 * 1024 - 20);
+		// holding the journal's lock keeps a periodic commit waiting until the compaction is
+		// queued, as if it had been due just before it
+		synchronized (journal) {
+			document.insertString(0, filler, null);
+			Thread.sleep(700);
+			// gets the journal over the threshold
+			document.remove(0, filler.length());
+			document.insertString(0, "after ", null);
+		}
+		journal.close();
+
+		assertEquals("after hello\n", new EditJournal(directory).recover());
+	}
+
+	private static PlainDocument session(EditJournal journal, String text) throws IOException, BadLocationException {
+		PlainDocument document = new PlainDocument();
+		document.insertString(0, text, null);
+		journal.start(text);
+		journal.attach(document);
+		return document;
+	}
+}
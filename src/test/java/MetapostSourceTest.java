@@ -0,0 +1,113 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MetapostSourceTest {
+	private static final String PREAMBLE = "prologues := 3;\n";
+	private static final String FIRST = "beginfig(1);\n  draw (0,0)--(1cm,1cm);\nendfig;\n";
+	private static final String SECOND = "beginfig(2);\n  fill unitsquare scaled 1cm;\nendfig;\n";
+
+	@Test
+	public void splitsThePreambleAndTheFigures() {
+		MetapostSource document = MetapostSource.parse(PREAMBLE + FIRST + SECOND + "end\n");
+
+		assertTrue(document.isSplittable());
+		assertEquals(PREAMBLE, document.getPreamble());
+		assertEquals(2, document.getFigures().size());
+		assertEquals(1, document.getFigures().get(0).getNumber());
+		assertEquals(2, document.getFigures().get(0).getFirstLine());
+		assertEquals(SECOND, document.getFigures().get(1).getText());
+		assertEquals(5, document.getFigures().get(1).getFirstLine());
+	}
+
+	@Test
+	public void ignoresKeywordsInCommentsAndStrings() {
+		String figure = "beginfig(1);\n  % endfig, beginfig(3)\n  message \"endfig\";\nendfig;\n";
+		MetapostSource document = MetapostSource.parse(figure + SECOND + "end\n");
+
+		assertTrue(document.isSplittable());
+		assertEquals(figure, document.getFigures().get(0).getText());
+	}
+
+	@Test
+	public void doesntSplitDocumentsWithCodeBetweenFigures() {
+		assertFalse(MetapostSource.parse(FIRST + "draw origin;\n" + SECOND + "end\n").isSplittable());
+	}
+
+	@Test
+	public void doesntSplitDocumentsWithDuplicateFigureNumbers() {
+		assertFalse(MetapostSource.parse(FIRST + FIRST + "end\n").isSplittable());
+	}
+
+	@Test
+	public void splitsFiguresWhichDeclareTheirOwnVariables() {
+		String figure = "  pair a, b; numeric n; path p;\n  a := (0, 0); b := (3.5cm, 1.25cm);\n  draw a--b;\nendfig;\n";
+		MetapostSource document = MetapostSource.parse("beginfig(1);\n" + figure + "beginfig(2);\n" + figure + "end\n");
+
+		assertTrue(document.isSplittable());
+	}
+
+	@Test
+	public void splitsFiguresWhichAssignBeforeReading() {
+		String first = "beginfig(1);\n  u := 1cm;\n  draw (0,0)--(u,u);\nendfig;\n";
+		String second = "beginfig(2);\n  u := 2cm;\n  z1 = (u, 0);\n  draw z1;\nendfig;\n";
+
+		assertTrue(MetapostSource.parse(first + second + "end\n").isSplittable());
+	}
+
+	@Test
+	public void doesntSplitFiguresWhichReadWhatAnEarlierOneAssigned() {
+		String first = "beginfig(1);\n  u := 1cm;\n  draw (0,0)--(u,u);\nendfig;\n";
+		String second = "beginfig(2);\n  draw (0,0)--(0,u);\nendfig;\n";
+		MetapostSource document = MetapostSource.parse(first + second + "end\n");
+
+		assertFalse(document.isSplittable());
+		assertEquals(first + second + "end\n", document.getPreamble());
+	}
+
+	@Test
+	public void doesntSplitFiguresWhichUseAnEarlierOnesMacro() {
+		String first = "beginfig(1);\n  def box = unitsquare scaled 2cm enddef;\n  draw box;\nendfig;\n";
+		String second = "beginfig(2);\n  fill box;\nendfig;\n";
+
+		assertFalse(MetapostSource.parse(first + second + "end\n").isSplittable());
+	}
+
+	@Test
+	public void doesntSplitFiguresWhoseEquationsMayContradictAnEarlierOne() {
+		String first = "beginfig(1);\n  a = 1cm;\nendfig;\n";
+		String second = "beginfig(2);\n  a = 2cm;\nendfig;\n";
+
+		assertFalse(MetapostSource.parse(first + second + "end\n").isSplittable());
+	}
+
+	@Test
+	public void savedVariablesDontOutliveTheirFigure() {
+		String first = "beginfig(1);\n  save a; a := 1cm;\n  draw (a,a);\nendfig;\n";
+		String second = "beginfig(2);\n  draw (a,0);\nendfig;\n";
+
+		assertTrue(MetapostSource.parse(first + second + "end\n").isSplittable());
+	}
+
+	@Test
+	public void synthesizesThePreambleWithTheSelectedFigures() {
+		MetapostSource document = MetapostSource.parse(PREAMBLE + FIRST + SECOND + "end\n");
+
+		assertEquals(PREAMBLE + SECOND + "end\n", document.synthesize(List.of(document.getFigures().get(1))));
+	}
+
+	@Test
+	public void mapsSynthesizedLinesBackToTheDocument() {
+		MetapostSource document = MetapostSource.parse(PREAMBLE + FIRST + SECOND + "end\n");
+		List<MetapostSource.FigureBlock> second = List.of(document.getFigures().get(1));
+
+		assertEquals(1, document.originalLine(second, 1));
+		assertEquals(5, document.originalLine(second, 2));
+		assertEquals(7, document.originalLine(second, 4));
+		assertEquals(3, document.originalLine(document.getFigures(), 3));
+	}
+}
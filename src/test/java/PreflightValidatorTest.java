@@ -0,0 +1,94 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PreflightValidatorTest {
+
+	@Test
+	public void acceptsBalancedBlocks() {
+		String source = "beginfig(1);\n  for i=1 upto 3:\n    if i > 1: draw (i,0); else: draw (0,i); fi\n  endfor\n  draw begingroup origin endgroup;\nendfig;\nend\n";
+
+		assertTrue(PreflightValidator.validate(source).isEmpty());
+	}
+
+	@Test
+	public void reportsUnclosedBlocksWhereTheyOpen() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("prologues := 3;\nbeginfig(1);\n  draw origin;\nend\n");
+
+		assertEquals(1, diagnostics.size());
+		assertEquals(2, diagnostics.get(0).getLine());
+		assertEquals("beginfig without endfig", diagnostics.get(0).getMessage());
+	}
+
+	@Test
+	public void reportsClosersWithoutOpeners() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("beginfig(1);\n  draw origin;\nendfig;\nendfor\nend\n");
+
+		assertEquals(1, diagnostics.size());
+		assertEquals(4, diagnostics.get(0).getLine());
+		assertEquals("endfor without a matching opening", diagnostics.get(0).getMessage());
+	}
+
+	@Test
+	public void reportsMismatchedClosers() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("beginfig(1);\n  for i=1 upto 3:\n    draw (i,0);\n  fi\nendfig;\nend\n");
+
+		assertEquals(1, diagnostics.size());
+		assertEquals(4, diagnostics.get(0).getLine());
+		assertEquals("fi doesn't close the for from line 2", diagnostics.get(0).getMessage());
+	}
+
+	@Test
+	public void reportsElseOutsideOfAnIf() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("beginfig(1);\n  else: draw origin;\nendfig;\nend\n");
+
+		assertEquals(1, diagnostics.size());
+		assertEquals("else outside of an if", diagnostics.get(0).getMessage());
+	}
+
+	@Test
+	public void reportsUnterminatedStringsAndTex() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("beginfig(1);\n  message \"hello;\n  label(btex $x$, origin);\nendfig;\nend\n");
+
+		assertEquals(2, diagnostics.size());
+		assertEquals("Unterminated string", diagnostics.get(0).getMessage());
+		assertEquals(2, diagnostics.get(0).getLine());
+		assertEquals("TeX material without a closing etex", diagnostics.get(1).getMessage());
+		assertEquals(3, diagnostics.get(1).getLine());
+	}
+
+	@Test
+	public void ignoresKeywordsInCommentsStringsAndTex() {
+		String source = "beginfig(1);\n  % for if def\n  message \"endfig fi\";\n  label(btex begingroup etex, origin);\nendfig;\nend\n";
+
+		assertTrue(PreflightValidator.validate(source).isEmpty());
+	}
+
+	@Test
+	public void checksBlocksInsideBalancedDefinitions() {
+		List<Diagnostic> diagnostics = PreflightValidator.validate("def box = begingroup draw unitsquare; endgroup enddef;\nbeginfig(1);\n  box;\nend\n");
+
+		assertEquals(1, diagnostics.size());
+		assertEquals("beginfig without endfig", diagnostics.get(0).getMessage());
+	}
+
+	@Test
+	public void skipsBlockChecksForMacrosWhichOpenOrCloseBlocks() {
+		String source = "def openbox = begingroup enddef;\ndef closebox = endgroup enddef;\nbeginfig(1);\n  openbox draw origin; closebox;\nendfig;\nend\n";
+
+		assertTrue(PreflightValidator.validate(source).isEmpty());
+	}
+
+	@Test
+	public void skipsBlockChecksForDocumentsUsingLet() {
+		assertTrue(PreflightValidator.validate("let endfigure = endfig;\nbeginfig(1);\n  draw origin;\nendfigure;\nend\n").isEmpty());
+	}
+
+	@Test
+	public void skipsBlockChecksForDocumentsWhichInputMacros() {
+		assertTrue(PreflightValidator.validate("input boxes;\nbeginfig(1);\n  draw origin;\nendfigure;\nend\n").isEmpty());
+	}
+}
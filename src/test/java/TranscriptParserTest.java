@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TranscriptParserTest {
+	private static final List<String> TRANSCRIPT = List.of(
+		"This is MetaPost, version 2.02",
+		"(./job.mp",
+		"! Undefined coordinates (...).",
+		"<to be read again>",
+		"                   ;",
+		"l.3   draw (a,b)",
+		"                ;",
+		"? ",
+		"! Another error which doesn't count.");
+
+	// feeds lines for as long as the parser wants them, returns how many it took
+	private static int feed(TranscriptParser parser, List<String> lines) {
+		int read = 0;
+		for (String line : lines) {
+			read++;
+			if (!parser.test(line)) {
+				break;
+			}
+		}
+		return read;
+	}
+
+	@Test
+	public void capturesTheFirstErrorWithItsLineAndContext() {
+		TranscriptParser parser = new TranscriptParser();
+
+		assertEquals(7, feed(parser, TRANSCRIPT));
+		Diagnostic diagnostic = parser.getDiagnostic();
+		assertEquals(3, diagnostic.getLine());
+		assertEquals("Undefined coordinates (...).", diagnostic.getMessage());
+		assertEquals("  draw (a,b)\n                ;", diagnostic.getContext());
+		assertFalse(parser.test("! Another error"));
+	}
+
+	@Test
+	public void reportsNothingForCleanRuns() {
+		TranscriptParser parser = new TranscriptParser();
+
+		assertEquals(3, feed(parser, List.of("This is MetaPost, version 2.02", "(./job.mp [1] )", "1 output file written: job.1")));
+		assertTrue(parser.test("Transcript written on job.log."));
+		assertNull(parser.getDiagnostic());
+	}
+
+	@Test
+	public void reportsErrorsWhichArentTiedToALine() {
+		TranscriptParser parser = new TranscriptParser();
+		feed(parser, List.of("! Emergency stop.", "*** (job aborted, file error in nonstop mode)"));
+
+		assertEquals(0, parser.getDiagnostic().getLine());
+		assertEquals("Emergency stop.", parser.getDiagnostic().getMessage());
+		assertEquals("", parser.getDiagnostic().getContext());
+	}
+
+	@Test
+	public void linesOfSynthesizedDocumentsMapBackToTheEditor() {
+		String second = "beginfig(2);\n  draw (a,b);\nendfig;\n";
+		MetapostSource document = MetapostSource.parse("prologues := 3;\nbeginfig(1);\n  draw origin;\nendfig;\n" + second + "end\n");
+		List<MetapostSource.FigureBlock> changed = List.of(document.getFigures().get(1));
+		assertEquals("prologues := 3;\n" + second + "end\n", document.synthesize(changed));
+
+		TranscriptParser parser = new TranscriptParser();
+		feed(parser, TRANSCRIPT);
+
+		// line 3 of the synthesized document is the draw of the second figure
+		assertEquals(6, document.originalLine(changed, parser.getDiagnostic().getLine()));
+	}
+}